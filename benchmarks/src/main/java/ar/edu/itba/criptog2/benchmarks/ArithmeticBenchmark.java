@@ -0,0 +1,128 @@
+package ar.edu.itba.criptog2.benchmarks;
+
+import ar.edu.itba.criptog2.util.Field;
+import ar.edu.itba.criptog2.util.LagrangeInterpolator;
+import ar.edu.itba.criptog2.util.Point;
+import ar.edu.itba.criptog2.util.Polynomial;
+import ar.edu.itba.criptog2.util.VandermondeEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-section arithmetic: evaluating a section's polynomial when distributing, and interpolating it when recovering,
+ * modulo 257 and in GF(2^8).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArithmeticBenchmark {
+
+	private static final int TILE_SECTIONS = 1024;
+
+	@Param({"2", "3", "4", "8"})
+	int k;
+
+	private Polynomial polynomial;
+	private List<Point> points;
+	private LagrangeInterpolator interpolator;
+	private int[][] weights;
+	private int[][] weightsGF256;
+	private int[] ys;
+	private int[] coefficients;
+	private VandermondeEncoder encoder;
+	private VandermondeEncoder.Tile tile;
+	private VandermondeEncoder encoderGF256;
+	private VandermondeEncoder.Tile tileGF256;
+	private byte[] tileSecret;
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(k);
+		final int[] sectionBytes = new int[k];
+		final int[] xs = new int[k];
+		points = new ArrayList<>();
+		ys = new int[k];
+		for (int i = 0; i < k; i++) {
+			sectionBytes[i] = random.nextInt(256);
+			xs[i] = i + 1;
+			ys[i] = random.nextInt(256);
+			points.add(new Point(xs[i], ys[i]));
+		}
+		polynomial = new Polynomial(sectionBytes);
+		interpolator = new LagrangeInterpolator();
+		weights = interpolator.weights(xs, 257);
+		weightsGF256 = interpolator.weightsInGF256(xs);
+		coefficients = new int[k];
+		encoder = new VandermondeEncoder(k, k);
+		tile = encoder.newTile(TILE_SECTIONS);
+		encoderGF256 = new VandermondeEncoder(k, k, Field.GF256);
+		tileGF256 = encoderGF256.newTile(TILE_SECTIONS);
+		tileSecret = new byte[TILE_SECTIONS * k];
+		random.nextBytes(tileSecret);
+	}
+
+	/**
+	 * Evaluates a section's polynomial at each shadow number, as distributing with n = k does.
+	 */
+	@Benchmark
+	public int evaluate() {
+		int sum = 0;
+		for (int x = 1; x <= k; x++) {
+			sum += polynomial.evaluateModulo257(x);
+		}
+		return sum;
+	}
+
+	/**
+	 * Evaluates the polynomials of a whole tile of sections at each shadow number, as distributing with n = k does.
+	 * Divide by the number of sections in a tile to compare with {@link #evaluate()}.
+	 */
+	@Benchmark
+	public VandermondeEncoder.Tile evaluateTile() {
+		encoder.evaluate(tile, tileSecret, 0, TILE_SECTIONS);
+		return tile;
+	}
+
+	/**
+	 * Same as {@link #evaluateTile()}, in GF(2^8).
+	 */
+	@Benchmark
+	public VandermondeEncoder.Tile evaluateTileGF256() {
+		encoderGF256.evaluate(tileGF256, tileSecret, 0, TILE_SECTIONS);
+		return tileGF256;
+	}
+
+	@Benchmark
+	public Polynomial interpolate() {
+		return interpolator.interpolate(points, 257);
+	}
+
+	@Benchmark
+	public int[] interpolateWithWeights() {
+		interpolator.interpolate(weights, ys, 257, coefficients);
+		return coefficients;
+	}
+
+	@Benchmark
+	public int[] interpolateWithWeightsGF256() {
+		interpolator.interpolateInGF256(weightsGF256, ys, coefficients);
+		return coefficients;
+	}
+}
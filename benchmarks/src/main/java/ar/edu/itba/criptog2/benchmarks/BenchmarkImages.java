@@ -0,0 +1,58 @@
+package ar.edu.itba.criptog2.benchmarks;
+
+import ar.edu.itba.criptog2.util.BmpWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generates the 8-bit BMPs benchmarks run on.
+ */
+final class BenchmarkImages {
+
+	private BenchmarkImages() {}
+
+	/**
+	 * Writes an 8-bit BMP with random pixels.
+	 *
+	 * @param file Where to write the image.
+	 * @param width Width of the image, in pixels.
+	 * @param height Height of the image, in pixels.
+	 * @param seed Seed for the pixels, so that runs are comparable.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	static void write(File file, int width, int height, long seed) throws IOException {
+		byte[] pixels = new byte[width * height];
+		new Random(seed).nextBytes(pixels);
+		new BmpWriter.BmpWriterBuilder()
+				.file(file)
+				.width(width)
+				.height(height)
+				.pictureData(pixels)
+				.build()
+				.writeImage();
+	}
+
+	/**
+	 * @param side Width of the covers and width and height of the secret.
+	 * @param k The minimum number of shadows needed to recover the secret.
+	 * @return The smallest cover height that can hide a {@code side}x{@code side} secret.
+	 */
+	static int coverHeight(int side, int k) {
+		return (int) Math.ceil(side * 8.0 / k);
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 */
+	static void delete(Path directory) throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package ar.edu.itba.criptog2.benchmarks;
+
+import ar.edu.itba.criptog2.util.BmpParser;
+import ar.edu.itba.criptog2.util.BmpWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and writing whole BMPs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BmpBenchmark {
+
+	/**
+	 * Width and height of the image.
+	 */
+	@Param({"256", "1024", "2048"})
+	int size;
+
+	private Path directory;
+	private String imagePath;
+	private BmpWriter writer;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = Files.createTempDirectory("bmp-benchmark");
+		imagePath = directory.resolve("image.bmp").toString();
+		BenchmarkImages.write(new File(imagePath), size, size, size);
+		writer = new BmpWriter.BmpWriterBuilder(new BmpParser(imagePath))
+				.file(directory.resolve("copy.bmp").toFile())
+				.build();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		BenchmarkImages.delete(directory);
+	}
+
+	@Benchmark
+	public BmpParser parse() throws IOException {
+		return new BmpParser(imagePath);
+	}
+
+	@Benchmark
+	public void write() throws IOException {
+		writer.writeImage();
+	}
+}
@@ -0,0 +1,105 @@
+package ar.edu.itba.criptog2.benchmarks;
+
+import ar.edu.itba.criptog2.distribute.Distributor;
+import ar.edu.itba.criptog2.recover.Recoverer;
+import net.sourceforge.argparse4j.inf.Namespace;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole distribute and recover runs, from reading the images to writing the results, over a grid of schemes and image
+ * sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+	/**
+	 * k:n, the minimum number of shadows needed to recover the secret and the number of shadows.
+	 */
+	@Param({"2:4", "3:5", "4:8", "8:8"})
+	String scheme;
+
+	/**
+	 * Width and height of the secret.
+	 */
+	@Param({"256", "1024"})
+	int size;
+
+	private Path directory;
+	private Namespace distributeArguments;
+	private Namespace recoverArguments;
+
+	@Setup
+	public void setup() throws Exception {
+		final String[] kn = scheme.split(":");
+		final int k = Integer.parseInt(kn[0]);
+		final int n = Integer.parseInt(kn[1]);
+
+		directory = Files.createTempDirectory("end-to-end-benchmark");
+		final Path covers = Files.createDirectory(directory.resolve("covers"));
+		final Path shadows = Files.createDirectory(directory.resolve("shadows"));
+		final Path secret = directory.resolve("secret.bmp");
+		BenchmarkImages.write(secret.toFile(), size, size, 0);
+		for (int i = 1; i <= n; i++) {
+			BenchmarkImages.write(covers.resolve("cover" + i + ".bmp").toFile(), size, BenchmarkImages.coverHeight(size, k), i);
+		}
+
+		distributeArguments = arguments(secret.toString(), covers, k, n);
+		recoverArguments = arguments(directory.resolve("recovered.bmp").toString(), shadows, k, null);
+
+		// Recovery needs shadows with a secret in them
+		Distributor.createFromNamespace(distributeArguments).work();
+		for (int i = 1; i <= k; i++) {
+			Files.copy(covers.resolve("cover" + i + ".bmp"), shadows.resolve("shadow" + i + ".bmp"));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		BenchmarkImages.delete(directory);
+	}
+
+	@Benchmark
+	public void distribute() throws Exception {
+		Distributor.createFromNamespace(distributeArguments).work();
+	}
+
+	@Benchmark
+	public void recover() throws Exception {
+		Recoverer.createFromNamespace(recoverArguments).work();
+	}
+
+	private static Namespace arguments(String secret, Path directory, int k, Integer n) {
+		final Map<String, Object> arguments = new HashMap<>();
+		arguments.put("secret", secret);
+		arguments.put("dir", directory.toString());
+		arguments.put("k", k);
+		arguments.put("n", n);
+		arguments.put("threads", 1);
+		arguments.put("band", null);
+		return new Namespace(arguments);
+	}
+}
@@ -0,0 +1,77 @@
+package ar.edu.itba.criptog2.benchmarks;
+
+import ar.edu.itba.criptog2.util.LsbCodec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hiding bytes in, and extracting them from, a shadow's picture data, one byte at a time and a range at a time. The
+ * range methods are the kernels behind {@code VandermondeEncoder.embed} and {@code Recoverer.getHiddenBytes}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LsbBenchmark {
+
+	private static final int SECTIONS = 4096;
+
+	private byte[] pictureData;
+	private byte[] hiddenBytes;
+	private int[] hiddenValues;
+
+	@Setup
+	public void setup() {
+		final Random random = new Random(0);
+		pictureData = new byte[8 * SECTIONS];
+		hiddenBytes = new byte[SECTIONS];
+		random.nextBytes(pictureData);
+		random.nextBytes(hiddenBytes);
+		hiddenValues = new int[SECTIONS];
+		for (int j = 0; j < SECTIONS; j++) {
+			hiddenValues[j] = hiddenBytes[j] & 0xFF;
+		}
+	}
+
+	@Benchmark
+	public byte[] hideBytes() {
+		for (int j = 0; j < SECTIONS; j++) {
+			LsbCodec.embed(pictureData, 8 * j, hiddenBytes[j]);
+		}
+		return pictureData;
+	}
+
+	@Benchmark
+	public int getHiddenBytes() {
+		int sum = 0;
+		for (int j = 0; j < SECTIONS; j++) {
+			sum += LsbCodec.extract(pictureData, 8 * j);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public byte[] hideRange() {
+		LsbCodec.embed(pictureData, 0, hiddenValues, 0, SECTIONS);
+		return pictureData;
+	}
+
+	@Benchmark
+	public int[] getHiddenRange() {
+		LsbCodec.extract(pictureData, 0, hiddenValues, 0, SECTIONS);
+		return hiddenValues;
+	}
+}
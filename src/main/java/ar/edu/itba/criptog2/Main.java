@@ -1,7 +1,9 @@
 package ar.edu.itba.criptog2;
 
+import ar.edu.itba.criptog2.distribute.BatchDistributor;
 import ar.edu.itba.criptog2.distribute.Distributor;
 import ar.edu.itba.criptog2.recover.Recoverer;
+import ar.edu.itba.criptog2.server.ShareServer;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -18,28 +20,67 @@ public class Main {
 		// https://argparse4j.github.io/usage.html
 		final ArgumentParser parser = ArgumentParsers.newArgumentParser("VisualSSS")
                 .description("Distribute secret pictures among other pictures, and recover secret pictures from other pictures.")
-                .usage("-d|-r -secret [FILE] -k [NUMBER] [-n [NUMBER] -dir [DIRECTORY]]");
+                .usage("-d|-r -secret [FILE] -k [NUMBER] [-n [NUMBER] -dir [DIRECTORY] -threads [NUMBER] -band [ROWS] -inplace -gf256 -region [X,Y,WIDTH,HEIGHT] -rows [Y,HEIGHT] -stats -metrics [FILE]]\n       -d -batch [FILE|DIRECTORY] -k [NUMBER] [-jobs [NUMBER] ...]\n       -serve [PORT] [-jobs [NUMBER] -queue [NUMBER] -threads [NUMBER] -metrics [FILE]]");
 
         //Required Arguments
         //Note: -d and -r are both set as required: false because exactly one of the two is required
 		parser.addArgument("-d").dest("distribute").action(Arguments.storeTrue()).required(false).type(String.class).help("Distribute an image");
 		parser.addArgument("-r").dest("recover").action(Arguments.storeTrue()).required(false).type(String.class).help("Recover an image");
-		parser.addArgument("-secret").dest("secret").required(true).type(String.class).help("If used with -d, the image to distribute. If used with -r, the output file for the recovered image.");
-		parser.addArgument("-k").dest("k").required(true).type(Integer.class).help("The minimum number of shadows needed to recover an image.");
+		parser.addArgument("-secret").dest("secret").required(false).type(String.class).help("Required unless -batch is used. If used with -d, the image to distribute. If used with -r, the output file for the recovered image, or - to write it to standard output.");
+		parser.addArgument("-k").dest("k").required(false).type(Integer.class).help("Required unless -serve is used. The minimum number of shadows needed to recover an image.");
 
 		//Optional Arguments
 		parser.addArgument("-n").dest("n").required(false).type(Integer.class).help("Only allowed when used with -d. Total number of shadows to generate. If not provided, will make n the number of pictures in the specified directory.");
+		parser.addArgument("-threads").dest("threads").required(false).type(Integer.class).setDefault(1).help("Number of threads to distribute or recover the secret with. Default is 1.");
+		parser.addArgument("-band").dest("band").required(false).type(Integer.class).help("Stream the secret in bands of the given number of rows, so that memory use does not depend on the size of the images.");
+		parser.addArgument("-inplace").dest("inplace").action(Arguments.storeTrue()).required(false).help("Only allowed when used with -d. Modify shadows in place, writing only the bytes that hide the secret, instead of rewriting them. Keeps each shadow's own palette, but shadows are not replaced atomically.");
+		parser.addArgument("-gf256").dest("gf256").action(Arguments.storeTrue()).required(false).help("Only allowed when used with -d. Share the secret in GF(2^8) instead of modulo 257, so that it is recovered exactly. Allows at most 255 shadows. Shadows are marked with the field they were shared in, so -r needs no option.");
+		parser.addArgument("-region").dest("region").required(false).type(String.class).help("Only allowed when used with -r. Recover only the given rectangle of the secret, in pixels from its top left corner, reading only the parts of the shadows that hide it. The output file is a BMP of the rectangle.");
+		parser.addArgument("-rows").dest("rows").required(false).type(String.class).help("Only allowed when used with -r, instead of -region. Recover only the given rows of the secret, counted from the top, like -region with the whole width of the secret.");
+		parser.addArgument("-stats").dest("stats").action(Arguments.storeTrue()).required(false).help("Print how long each phase of distributing or recovering took, and the throughput, to standard error.");
+		parser.addArgument("-metrics").dest("metrics").required(false).type(String.class).help("Write the metrics of each run to the given file once done: a Prometheus text file holding the last run if its name ends in .prom, otherwise a JSON object per run appended to it.");
+		parser.addArgument("-batch").dest("batch").required(false).type(String.class).help("Only allowed when used with -d, instead of -secret. Distribute many secrets in one run. Either a directory of secrets, each one distributed among the images of the directory with the same name inside -dir, or a manifest file with a secret and a directory per line.");
+		parser.addArgument("-jobs").dest("jobs").required(false).type(Integer.class).setDefault(1).help("Only used with -batch or -serve. Number of secrets distributed or recovered at once. Default is 1.");
+		parser.addArgument("-serve").dest("serve").required(false).type(Integer.class).help("Instead of -d or -r, serve distribute and recover jobs over HTTP on the given port of localhost.");
+		parser.addArgument("-queue").dest("queue").required(false).type(Integer.class).setDefault(16).help("Only used with -serve. Number of jobs that can wait for a free worker before new ones are rejected. Default is 16.");
 		parser.addArgument("-dir").dest("dir").required(false).type(String.class).setDefault(".").help("If used with -d, directory containing images where secret will be distributed. If used with -r, directory containing images from which to recover the secret. In either case, default is current directory.");
 
 		Namespace ns = null;
 		try {
             ns = parser.parseArgs(args);
             //Extra validations
-            if(ns.getBoolean("distribute").equals(ns.getBoolean("recover"))) {
-                throw new ArgumentParserException("Exactly ONE of -d (distribute) or -r (recover) is needed.", parser);
-            }
-            if(ns.getInt("n") != null && ns.getBoolean("recover")) {
-				throw new ArgumentParserException("-n is only allowed with -d", parser);
+            if(ns.getInt("serve") != null) {
+				if(ns.getBoolean("distribute") || ns.getBoolean("recover") || ns.getString("secret") != null || ns.getString("batch") != null) {
+					throw new ArgumentParserException("-serve takes jobs over HTTP, it can't be used with -d, -r, -secret or -batch.", parser);
+				}
+			} else {
+				if(ns.getInt("k") == null) {
+					throw new ArgumentParserException("argument -k is required", parser);
+				}
+				if(ns.getBoolean("distribute").equals(ns.getBoolean("recover"))) {
+					throw new ArgumentParserException("Exactly ONE of -d (distribute) or -r (recover) is needed.", parser);
+				}
+				if(ns.getInt("n") != null && ns.getBoolean("recover")) {
+					throw new ArgumentParserException("-n is only allowed with -d", parser);
+				}
+				if(ns.getBoolean("inplace") && ns.getBoolean("recover")) {
+					throw new ArgumentParserException("-inplace is only allowed with -d", parser);
+				}
+				if(ns.getBoolean("gf256") && ns.getBoolean("recover")) {
+					throw new ArgumentParserException("-gf256 is only allowed with -d", parser);
+				}
+				if((ns.getString("region") != null || ns.getString("rows") != null) && ns.getBoolean("distribute")) {
+					throw new ArgumentParserException("-region and -rows are only allowed with -r", parser);
+				}
+				if(ns.getString("region") != null && ns.getString("rows") != null) {
+					throw new ArgumentParserException("Only ONE of -region or -rows can be used.", parser);
+				}
+				if(ns.getString("batch") != null && ns.getBoolean("recover")) {
+					throw new ArgumentParserException("-batch is only allowed with -d", parser);
+				}
+				if((ns.getString("secret") == null) == (ns.getString("batch") == null)) {
+					throw new ArgumentParserException("Exactly ONE of -secret or -batch is needed.", parser);
+				}
 			}
         } catch (ArgumentParserException e) {
             parser.handleError(e);
@@ -47,10 +88,23 @@ public class Main {
         }
 
 
-		if (ns.getBoolean("distribute")) {
-			Distributor.createFromNamespace(ns).work();
-		} else if(ns.getBoolean("recover")){
-			Recoverer.createFromNamespace(ns).work();
+		try {
+			if (ns.getInt("serve") != null) {
+				ShareServer.createFromNamespace(ns).work();
+			} else if (ns.getString("batch") != null) {
+				BatchDistributor.createFromNamespace(ns).work();
+			} else if (ns.getBoolean("distribute")) {
+				Distributor.createFromNamespace(ns).work();
+			} else if(ns.getBoolean("recover")){
+				Recoverer.createFromNamespace(ns).work();
+				if (!Recoverer.STANDARD_OUTPUT.equals(ns.getString("secret"))) {
+					System.out.println("Wrote ouput to: " + ns.getString("secret"));
+				}
+			}
+		} catch (ShareException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Aborting.");
+			System.exit(1);
 		}
 	}
 }
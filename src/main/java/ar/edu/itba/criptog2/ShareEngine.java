@@ -0,0 +1,124 @@
+package ar.edu.itba.criptog2;
+
+import ar.edu.itba.criptog2.distribute.Distributor;
+import ar.edu.itba.criptog2.recover.Recoverer;
+import ar.edu.itba.criptog2.util.BmpParser;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Distributes and recovers secrets from code, without going through the command line. Works either on files, like the
+ * command line does, or on the contents of BMP files held in memory.
+ * <p>
+ * Engines hold no state besides their configuration: every call creates its own {@link Distributor} or
+ * {@link Recoverer}, so a single engine can run any number of jobs concurrently. Errors are reported with
+ * {@link ShareException}, never by exiting.
+ */
+public final class ShareEngine {
+
+	private final int threads;
+
+	/**
+	 * Creates an engine that encodes and decodes each secret with a single thread.
+	 */
+	public ShareEngine() {
+		this(1);
+	}
+
+	/**
+	 * @param threads Number of threads each secret is encoded or decoded with. Must be positive.
+	 */
+	public ShareEngine(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads should be greater than or equal to 1.");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Distributes a secret among the given covers, overwriting each cover with its shadow.
+	 *
+	 * @param secret The BMP to distribute.
+	 * @param covers The BMPs to hide the secret in, exactly {@code n} of them. Cover i becomes shadow number i + 1.
+	 * @param k The minimum number of shadows needed to recover the secret.
+	 * @param n The number of shadows to create.
+	 * @throws ShareException If the parameters or pictures are not valid, or the pictures can't be read or written.
+	 */
+	public void distribute(Path secret, List<Path> covers, int k, int n) throws ShareException {
+		final BmpParser secretPicture = readHeader(secret, "secret picture");
+		final List<BmpParser> coverPictures = new ArrayList<>();
+		for (int i = 0; i < covers.size(); i++) {
+			coverPictures.add(readHeader(covers.get(i), "shadow #" + (i+1)));
+		}
+		Distributor.create(secretPicture, coverPictures, k, n, threads).work();
+	}
+
+	/**
+	 * Distributes a secret among the given covers, all in memory. The given arrays are not modified.
+	 *
+	 * @param secret Contents of the BMP to distribute.
+	 * @param covers Contents of the BMPs to hide the secret in, exactly {@code n} of them.
+	 * @param k The minimum number of shadows needed to recover the secret.
+	 * @param n The number of shadows to create.
+	 * @return Contents of each shadow's BMP, the i-th one being shadow number i + 1.
+	 * @throws ShareException If the parameters or pictures are not valid.
+	 */
+	public List<byte[]> distribute(byte[] secret, List<byte[]> covers, int k, int n) throws ShareException {
+		final BmpParser secretPicture = parse(secret, "secret picture");
+		final List<BmpParser> coverPictures = new ArrayList<>();
+		for (int i = 0; i < covers.size(); i++) {
+			coverPictures.add(parse(covers.get(i), "shadow #" + (i+1)));
+		}
+		return Distributor.create(secretPicture, coverPictures, k, n, threads).workInMemory();
+	}
+
+	/**
+	 * Recovers a secret from the given shadows, writing it to the given file.
+	 *
+	 * @param shadows The shadows to recover the secret from. Only the first {@code k} are used.
+	 * @param k The minimum number of shadows needed to recover the secret.
+	 * @param secret Where to write the recovered secret.
+	 * @throws ShareException If the parameters or shadows are not valid, or the files can't be read or written.
+	 */
+	public void recover(List<Path> shadows, int k, Path secret) throws ShareException {
+		final List<BmpParser> shadowPictures = new ArrayList<>();
+		for (int i = 0; i < Math.min(k, shadows.size()); i++) {
+			shadowPictures.add(readHeader(shadows.get(i), "shadow #" + (i+1)));
+		}
+		Recoverer.create(shadowPictures, k, threads, secret.toString()).work();
+	}
+
+	/**
+	 * Recovers a secret from the given shadows, all in memory. The given arrays are not modified.
+	 *
+	 * @param shadows Contents of the shadows to recover the secret from. Only the first {@code k} are used.
+	 * @param k The minimum number of shadows needed to recover the secret.
+	 * @return Contents of the recovered secret's BMP.
+	 * @throws ShareException If the parameters or shadows are not valid.
+	 */
+	public byte[] recover(List<byte[]> shadows, int k) throws ShareException {
+		final List<BmpParser> shadowPictures = new ArrayList<>();
+		for (int i = 0; i < Math.min(k, shadows.size()); i++) {
+			shadowPictures.add(parse(shadows.get(i), "shadow #" + (i+1)));
+		}
+		return Recoverer.create(shadowPictures, k, threads, null).workInMemory();
+	}
+
+	private static BmpParser readHeader(Path path, String description) throws ShareException {
+		try {
+			return BmpParser.readHeader(path.toString());
+		} catch (Exception e) {
+			throw new ShareException("Error reading " + description + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static BmpParser parse(byte[] bmp, String description) throws ShareException {
+		try {
+			return BmpParser.fromBytes(bmp, description);
+		} catch (Exception e) {
+			throw new ShareException("Error reading " + description + ": " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package ar.edu.itba.criptog2;
+
+/**
+ * Thrown when a secret can't be distributed or recovered, either because of invalid parameters or pictures, or because
+ * of an error reading or writing them. The message is meant to be shown to the user as is.
+ */
+public class ShareException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public ShareException(String message) {
+		super(message);
+	}
+
+	public ShareException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -1,5 +1,5 @@
 package ar.edu.itba.criptog2;
 
 public interface Worker {
-	void work();
+	void work() throws ShareException;
 }
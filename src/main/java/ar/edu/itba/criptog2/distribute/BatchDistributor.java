@@ -0,0 +1,219 @@
+package ar.edu.itba.criptog2.distribute;
+
+import ar.edu.itba.criptog2.ShareException;
+import ar.edu.itba.criptog2.Worker;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Distributes many secrets in a single run, each one among the pictures of its own directory. Jobs are described by a
+ * manifest, or by a directory of secrets, and run concurrently on a bounded pool, sharing the JVM, its warmed up code
+ * and the I/O executor.
+ * <p>
+ * Every job is validated before any of them starts, so a bad secret or directory aborts the batch before any shadow is
+ * modified. If a job fails while distributing, the jobs that haven't started are skipped and the running ones finish.
+ */
+public class BatchDistributor implements Worker {
+
+	private List<Distributor> jobs;
+	private List<String> secrets;
+	private int concurrentJobs;
+
+	private BatchDistributor() {
+		this.jobs = new ArrayList<>();
+		this.secrets = new ArrayList<>();
+	}
+
+	/**
+	 * Reads the jobs of the batch given with -batch. If it is a directory, each BMP in it is a secret, distributed among
+	 * the pictures of the directory with the same name (without extension) inside -dir. Otherwise it is a manifest,
+	 * where each line holds the secret to distribute and the directory to distribute it in, separated by whitespace.
+	 * Relative paths in a manifest are relative to the manifest's directory, and empty lines and lines starting with #
+	 * are ignored. Every other option applies to all jobs.
+	 * @param ns
+	 * @return the batch distributor
+	 */
+	public static BatchDistributor createFromNamespace(final Namespace ns) throws ShareException {
+
+		final BatchDistributor batch = new BatchDistributor();
+
+		batch.concurrentJobs = Optional.ofNullable(ns.getInt("jobs")).orElse(1);
+		if (batch.concurrentJobs < 1) {
+			throw new ShareException("Number of jobs should be greater than or equal to 1.");
+		}
+
+		final File batchFile = new File(ns.getString("batch"));
+		final List<String[]> entries = batchFile.isDirectory()
+				? readSecretsDirectory(batchFile, new File(ns.getString("dir")))
+				: readManifest(batchFile);
+		if (entries.isEmpty()) {
+			throw new ShareException("No secrets to distribute in " + batchFile.getPath());
+		}
+
+		// Distributing overwrites the pictures of each directory, so jobs can't share one
+		final Set<String> directories = new HashSet<>();
+		for (String[] entry : entries) {
+			String directory = null;
+			try {
+				directory = new File(entry[1]).getCanonicalPath();
+			} catch (IOException e) {
+				throw new ShareException("Error reading " + entry[1] + ": " + e.getMessage(), e);
+			}
+			if (!directories.add(directory)) {
+				throw new ShareException("More than one secret is distributed in " + entry[1] + ", each secret needs its own directory.");
+			}
+		}
+
+		for (String[] entry : entries) {
+			final Map<String, Object> attributes = new HashMap<>(ns.getAttrs());
+			attributes.put("secret", entry[0]);
+			attributes.put("dir", entry[1]);
+			batch.jobs.add(Distributor.createFromNamespace(new Namespace(attributes)));
+			batch.secrets.add(entry[0]);
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Lists the jobs of a directory of secrets
+	 * @param secretsDirectory the directory holding the secrets
+	 * @param shadowsDirectory the directory holding a directory of pictures for each secret
+	 * @return the secret and shadow directory of each job
+	 */
+	private static List<String[]> readSecretsDirectory(File secretsDirectory, File shadowsDirectory) {
+		final File[] files = secretsDirectory.listFiles();
+		final List<String[]> entries = new ArrayList<>();
+		if (files == null) {
+			return entries;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			final String name = file.getName();
+			if (file.isFile() && name.endsWith(".bmp")) {
+				final String shadowDirectory = new File(shadowsDirectory, name.substring(0, name.length() - ".bmp".length())).getPath();
+				entries.add(new String[] {file.getPath(), shadowDirectory});
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads the jobs of a manifest
+	 * @param manifest the manifest file
+	 * @return the secret and shadow directory of each job
+	 */
+	private static List<String[]> readManifest(File manifest) throws ShareException {
+		List<String> lines = null;
+		try {
+			lines = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new ShareException("Error reading batch manifest: " + e.getMessage(), e);
+		}
+
+		final File base = manifest.getAbsoluteFile().getParentFile();
+		final List<String[]> entries = new ArrayList<>();
+		for (int i = 0; i < lines.size(); i++) {
+			final String line = lines.get(i).trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			final String[] fields = line.split("\\s+");
+			if (fields.length != 2) {
+				throw new ShareException("Line " + (i+1) + " of " + manifest.getName() + " should hold a secret and a directory.");
+			}
+			entries.add(new String[] {resolve(base, fields[0]), resolve(base, fields[1])});
+		}
+		return entries;
+	}
+
+	private static String resolve(File base, String path) {
+		final File file = new File(path);
+		return file.isAbsolute() ? file.getPath() : new File(base, path).getPath();
+	}
+
+	/**
+	 * Runs every job. Once one fails, jobs that haven't started are skipped, and those already running are waited for,
+	 * so that no shadow is left partially written when this returns. Every failed secret is then reported, along with
+	 * the secrets that were skipped.
+	 */
+	@Override
+	public void work() throws ShareException {
+		final AtomicBoolean failed = new AtomicBoolean();
+		final AtomicIntegerArray started = new AtomicIntegerArray(this.jobs.size());
+		final AtomicReferenceArray<Throwable> errors = new AtomicReferenceArray<>(this.jobs.size());
+
+		final ExecutorService executor = Executors.newFixedThreadPool(this.concurrentJobs);
+		for (int i = 0; i < this.jobs.size(); i++) {
+			final int job = i;
+			executor.execute(() -> {
+				if (failed.get()) {
+					return;
+				}
+				started.set(job, 1);
+				try {
+					this.jobs.get(job).work();
+				} catch (Throwable e) {
+					errors.set(job, e);
+					failed.set(true);
+				}
+			});
+		}
+		executor.shutdown();
+
+		boolean interrupted = false;
+		while (!executor.isTerminated()) {
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				// Don't start any other job, but let running ones finish their shadows
+				interrupted = true;
+				failed.set(true);
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+
+		final List<String> messages = new ArrayList<>();
+		final List<String> skipped = new ArrayList<>();
+		Throwable cause = null;
+		for (int i = 0; i < this.jobs.size(); i++) {
+			final Throwable error = errors.get(i);
+			if (error != null) {
+				final String message = error instanceof ShareException ? error.getMessage() : error.toString();
+				messages.add("Error distributing " + this.secrets.get(i) + ": " + message);
+				cause = cause != null ? cause : error;
+			} else if (started.get(i) == 0) {
+				skipped.add(this.secrets.get(i));
+			}
+		}
+		if (interrupted) {
+			messages.add("Interrupted while distributing.");
+		}
+		if (!skipped.isEmpty()) {
+			messages.add("Not distributed: " + String.join(", ", skipped));
+		}
+		if (!messages.isEmpty()) {
+			throw new ShareException(String.join(System.lineSeparator(), messages), cause);
+		}
+	}
+}
@@ -1,35 +1,73 @@
 package ar.edu.itba.criptog2.distribute;
 
+import ar.edu.itba.criptog2.ShareException;
 import ar.edu.itba.criptog2.Worker;
 import ar.edu.itba.criptog2.util.BmpParser;
+import ar.edu.itba.criptog2.util.BmpPatcher;
 import ar.edu.itba.criptog2.util.BmpWriter;
-import ar.edu.itba.criptog2.util.Polynomial;
+import ar.edu.itba.criptog2.util.Field;
+import ar.edu.itba.criptog2.util.IoTasks;
+import ar.edu.itba.criptog2.util.Keystream;
+import ar.edu.itba.criptog2.util.MetricsExporter;
+import ar.edu.itba.criptog2.util.ParallelSections;
+import ar.edu.itba.criptog2.util.RunStatistics;
+import ar.edu.itba.criptog2.util.RunStatistics.Phase;
+import ar.edu.itba.criptog2.util.VandermondeEncoder;
 import net.sourceforge.argparse4j.inf.Namespace;
 
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.Future;
 
 public class Distributor implements Worker {
 
 	private int k;
 	private int n;
 	private BmpParser secretPicture;
-	private Random rnd;
 	private List<BmpParser> shadows;
 	private int seed;
+	private int threads;
+	private ParallelSections parallel;
+	private int bandRows;
+	private boolean inPlace;
+	private int shadowWidth, shadowHeight;
+	private Field field = Field.GF257;
+	private VandermondeEncoder encoder;
+	private boolean printStatistics;
+	private String metricsFile;
+	private final RunStatistics statistics = new RunStatistics("distribute", RunStatistics.DISTRIBUTE_PHASES);
+
+	/**
+	 * Approximate number of secret bytes per band when pictures are too large to be processed whole and no band size
+	 * was given.
+	 */
+	private static final int AUTOMATIC_BAND_BYTES = 1 << 24;
+
+	/**
+	 * Number of sections encoded one phase at a time, see {@link #encodeSections(byte[], byte[][], int, int)}.
+	 */
+	private static final int BLOCK_SECTIONS = 1024;
 
 	private Distributor() {
 		this.seed = new Random().nextInt(65536);		//2-byte seed
-		this.rnd = new Random(seed);					//Random number generator using that seed
 		this.shadows = new ArrayList<>();
 	}
 
-	public static Distributor createFromNamespace(final Namespace ns) throws Exception {
+	/**
+	 * Creates a distributor for the secret and directory given in the command line
+	 * @param ns
+	 * @return the distributor
+	 * @throws ShareException if the options or pictures are not valid
+	 */
+	public static Distributor createFromNamespace(final Namespace ns) throws ShareException {
 
 		final Distributor distributor = new Distributor();
 
@@ -38,121 +76,261 @@ public class Distributor implements Worker {
 		distributor.n = optionalN.orElse(distributor.k);
 		boolean providedN = optionalN.isPresent();
 
+		distributor.threads = ns.getInt("threads");
+		distributor.bandRows = Optional.ofNullable(ns.getInt("band")).orElse(0);
+		if (ns.getInt("band") != null && distributor.bandRows < 1) {
+			throw new ShareException("Band should be at least 1 row.");
+		}
+
+		distributor.inPlace = Boolean.TRUE.equals(ns.getBoolean("inplace"));
+		distributor.printStatistics = Boolean.TRUE.equals(ns.getBoolean("stats"));
+		distributor.metricsFile = ns.getString("metrics");
+		if (Boolean.TRUE.equals(ns.getBoolean("gf256"))) {
+			distributor.field = Field.GF256;
+		}
+
 		distributor.verifyCorrectKAndCorrectN(providedN);
 
+		// Probe the headers of the secret and all shadows concurrently, but validate them in order
+		final Future<BmpParser> secretPicture = IoTasks.submit(() -> BmpParser.readHeader(ns.getString("secret")));
+		final String shadowDirectory = ns.getString("dir");	// Should never be null
+		final File[] shadowFiles = new File(shadowDirectory).listFiles();
+		final List<Future<BmpParser>> shadowPictures = distributor.startParsingShadowFiles(shadowFiles);
+
 		try {
-			distributor.secretPicture = new BmpParser(ns.getString("secret"));
+			distributor.secretPicture = IoTasks.get(secretPicture);
 		} catch (Exception e) {
-			System.err.println("Error reading secret picture: " + e.getMessage());
-			System.err.println("Aborting.");
-			System.exit(1);
+			throw new ShareException("Error reading secret picture: " + e.getMessage(), e);
 		}
 
-		final String shadowDirectory = ns.getString("dir");	// Should never be null
-		distributor.loadShadowFiles(shadowDirectory);
+		distributor.loadShadowFiles(shadowDirectory, shadowFiles, shadowPictures);
 
 		distributor.verifyCorrectAmountOfShadows(providedN);
+		distributor.verifyFieldCanHoldShadows();
+
+		distributor.chooseBands();
+
+		distributor.encoder = new VandermondeEncoder(distributor.k, distributor.n, distributor.field);
+
+		return distributor;
+	}
+
+	/**
+	 * Creates a distributor for already parsed pictures, which writes every shadow over its own file with
+	 * {@link #work()}, or returns their contents with {@link #workInMemory()}.
+	 * @param secretPicture the secret to distribute
+	 * @param shadows the pictures to hide the secret in, exactly n of them
+	 * @param k the minimum number of shadows needed to recover the secret
+	 * @param n the number of shadows to create
+	 * @param threads the number of threads to encode the secret with
+	 * @return the distributor
+	 * @throws ShareException if the parameters or pictures are not valid
+	 */
+	public static Distributor create(BmpParser secretPicture, List<BmpParser> shadows, int k, int n, int threads) throws ShareException {
+		final Distributor distributor = new Distributor();
+		distributor.k = k;
+		distributor.n = n;
+		distributor.threads = threads;
+		distributor.verifyCorrectKAndCorrectN(true);
+
+		distributor.secretPicture = secretPicture;
+		for (int i = 0; i < shadows.size(); i++) {
+			distributor.addShadow(shadows.get(i), i == 0);
+		}
+		distributor.verifyCorrectAmountOfShadows(true);
+		distributor.verifyFieldCanHoldShadows();
+
+		distributor.chooseBands();
+
+		distributor.encoder = new VandermondeEncoder(distributor.k, distributor.n, distributor.field);
 
 		return distributor;
 	}
 
 	/**
-	 * Verify that n if larger than one, that k is larger than 1, and that k is smaller than n
+	 * Pictures too large for arrays are always streamed in bands
+	 */
+	private void chooseBands(){
+		if (this.bandRows == 0 && !fitsInMemory()) {
+			this.bandRows = Math.max(1, AUTOMATIC_BAND_BYTES / Math.max(1, this.secretPicture.getWidth()));
+		}
+	}
+
+	/**
+	 * Check whether the secret and everything that is read from the shadows fit in arrays, so they can be processed
+	 * whole instead of in bands
+	 * @return whether the secret and shadows fit in memory
+	 */
+	private boolean fitsInMemory(){
+		if (!this.secretPicture.canLoadPictureData() || getNumberOfPixels() > BmpParser.MAX_LOADABLE_PICTURE_SIZE
+				|| 8 * getSectionCount() > BmpParser.MAX_LOADABLE_PICTURE_SIZE) {
+			return false;
+		}
+		if (!this.inPlace) {
+			for (BmpParser shadow : this.shadows) {
+				if (!shadow.canLoadPictureData()) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the picture data of the secret and of every shadow concurrently
+	 */
+	private void loadPictureData() throws ShareException {
+		try (RunStatistics.Interval ignored = this.statistics.time(Phase.LOADING)) {
+			loadPictureDataConcurrently();
+		}
+		this.statistics.addBytesRead(this.secretPicture.getPictureSize());
+		for (BmpParser shadow : this.shadows) {
+			this.statistics.addBytesRead(shadow.getPictureSize());
+		}
+	}
+
+	private void loadPictureDataConcurrently() throws ShareException {
+		final List<BmpParser> pictures = new ArrayList<>(this.shadows);
+		pictures.add(0, this.secretPicture);
+		final List<Future<Void>> loads = new ArrayList<>();
+		for (BmpParser picture : pictures) {
+			loads.add(IoTasks.submit(() -> {
+				picture.loadPictureData();
+				return null;
+			}));
+		}
+		for (int i = 0; i < loads.size(); i++) {
+			try {
+				IoTasks.get(loads.get(i));
+			} catch (Exception e) {
+				throw new ShareException("Error reading " + (i == 0 ? "secret picture" : "shadow #" + i) + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Verify that n if larger than one, that k is larger than 1, that k is smaller than n, and that there is at least
+	 * one thread
 	 * @param providedN
 	 */
-	private void verifyCorrectKAndCorrectN(boolean providedN){
+	private void verifyCorrectKAndCorrectN(boolean providedN) throws ShareException {
 		if (providedN && this.n <= 1) {
-			System.err.println("N should be greater than or equal to 2.");
-			System.err.println("Aborting.");
-			System.exit(1);
+			throw new ShareException("N should be greater than or equal to 2.");
 		}
 		if (this.k <= 1) {
-			System.err.println("K should be greater than or equal to 2.");
-			System.err.println("Aborting.");
-			System.exit(1);
+			throw new ShareException("K should be greater than or equal to 2.");
 		}
 		if (providedN && this.k > this.n) {
-			System.err.println("K should be less than or equal to N.");
-			System.err.println("Aborting.");
-			System.exit(1);
+			throw new ShareException("K should be less than or equal to N.");
+		}
+		if (this.threads < 1) {
+			throw new ShareException("Number of threads should be greater than or equal to 1.");
 		}
 	}
 
+	/**
+	 * Verify that every shadow number can be stored and told apart in the field, see {@link Field#getMaxShadows()}
+	 */
+	private void verifyFieldCanHoldShadows() throws ShareException {
+		if (this.n > this.field.getMaxShadows()) {
+			throw new ShareException("In " + this.field + ", N should be less than or equal to " + this.field.getMaxShadows() + ".");
+		}
+	}
+
+	/**
+	 * Start probing the header of every BMP among the given files on the I/O executor
+	 * @param shadowFiles the files in the shadow directory, or null if it couldn't be listed
+	 * @return for each file, the future parsed shadow, or null if the file is not a BMP
+	 */
+	private List<Future<BmpParser>> startParsingShadowFiles(File[] shadowFiles){
+		final List<Future<BmpParser>> shadowPictures = new ArrayList<>();
+		if (shadowFiles != null) {
+			for (File shadowFile : shadowFiles) {
+				if (isShadowFile(shadowFile)) {
+					shadowPictures.add(IoTasks.submit(() -> BmpParser.readHeader(shadowFile.getAbsolutePath())));
+				} else {
+					shadowPictures.add(null);
+				}
+			}
+		}
+		return shadowPictures;
+	}
+
+	private static boolean isShadowFile(File file){
+		return file.isFile() && file.getName().endsWith(".bmp");
+	}
+
 	/**
 	 * Load shadow files to shadows list
 	 * @param shadowDirectory from where the shadow files will be loaded
+	 * @param shadowFiles the files in the shadow directory, or null if it couldn't be listed
+	 * @param shadowPictures the shadows being parsed, as returned by {@link #startParsingShadowFiles(File[])}
 	 */
-	private void loadShadowFiles(String shadowDirectory){
+	private void loadShadowFiles(String shadowDirectory, File[] shadowFiles, List<Future<BmpParser>> shadowPictures) throws ShareException {
 
-		File[] shadowFiles = new File(shadowDirectory).listFiles();
 		if(shadowFiles == null) {
-			System.err.println(shadowDirectory + " is not a directory or it does not exist. Aborting.");
-			System.exit(1);
+			throw new ShareException(shadowDirectory + " is not a directory or it does not exist.");
 		}
-		int shadowWidth = 0, shadowHeight = 0;
 		for (int i = 0; i < shadowFiles.length; i++) {
-			if (shadowFiles[i].isFile() && shadowFiles[i].getName().endsWith(".bmp")) {
+			if (isShadowFile(shadowFiles[i])) {
 				BmpParser shadow = null;
 				try {
-					shadow = new BmpParser(shadowFiles[i].getAbsolutePath());
+					shadow = IoTasks.get(shadowPictures.get(i));
 				} catch (Exception e) {
-					System.err.println("Error reading shadow #" + (i+1) +": " + e.getMessage());
-					System.err.println("Aborting.");
-					System.exit(1);
+					throw new ShareException("Error reading shadow #" + (i+1) +": " + e.getMessage(), e);
 				}
 
-				//Validate shadow dimensions
-				//1) All shadows should have the same dimensions. Store the dimensions of the first encountered shadow and ensure all others have the same dimensions.
-				if(i == 0) {
-					shadowWidth = shadow.getWidth();
-					shadowHeight = shadow.getHeight();
-				} else {
-					if(shadow.getWidth() != shadowWidth || shadow.getHeight() != shadowHeight) {
-						System.err.println("All shadows should have the same dimensions.");
-						System.err.println("Aborting.");
-						System.exit(1);
-					}
-				}
+				addShadow(shadow, i == 0);
+			}
+		}
+	}
 
-				//2) All shadows should have a particular size depending on K
-				if (this.k == 8) {
-					if (shadow.getWidth() != this.secretPicture.getWidth() || shadow.getHeight() != this.secretPicture.getHeight()) {
-						System.err.println("For K = 8, all shadows should have the same dimensions as secret (" + this.secretPicture.getWidth() + "x" + this.secretPicture.getHeight() + "), " + shadowFiles[i].getName() + " is " + shadow.getWidth() + "x" + shadow.getHeight());
-						System.err.println("Aborting.");
-						System.exit(1);
-					}
-				} else {
-					int secretPixelCount = this.secretPicture.getWidth() * this.secretPicture.getHeight();
-					int shadowPixelCount = shadow.getWidth() * shadow.getHeight();
-					if(secretPixelCount * (8.0/this.k) > shadowPixelCount) {
-						System.err.println("Shadow is not big enough to hide secret");
-						System.err.println("Aborting.");
-						System.exit(1);
-					}
-				}
+	/**
+	 * Validate a shadow and add it to shadows list
+	 * @param shadow the shadow to add
+	 * @param first whether the shadow is the first file of its directory, whose dimensions every other shadow must match
+	 */
+	private void addShadow(BmpParser shadow, boolean first) throws ShareException {
+		//Validate shadow dimensions
+		//1) All shadows should have the same dimensions. Store the dimensions of the first encountered shadow and ensure all others have the same dimensions.
+		if(first) {
+			this.shadowWidth = shadow.getWidth();
+			this.shadowHeight = shadow.getHeight();
+		} else {
+			if(shadow.getWidth() != this.shadowWidth || shadow.getHeight() != this.shadowHeight) {
+				throw new ShareException("All shadows should have the same dimensions.");
+			}
+		}
 
-				this.shadows.add(shadow);
+		//2) All shadows should have a particular size depending on K
+		if (this.k == 8) {
+			if (shadow.getWidth() != this.secretPicture.getWidth() || shadow.getHeight() != this.secretPicture.getHeight()) {
+				throw new ShareException("For K = 8, all shadows should have the same dimensions as secret (" + this.secretPicture.getWidth() + "x" + this.secretPicture.getHeight() + "), " + shadow.getName() + " is " + shadow.getWidth() + "x" + shadow.getHeight());
+			}
+		} else {
+			long secretPixelCount = getNumberOfPixels();
+			long shadowPixelCount = (long) shadow.getWidth() * shadow.getHeight();
+			if(secretPixelCount * (8.0/this.k) > shadowPixelCount) {
+				throw new ShareException("Shadow is not big enough to hide secret");
 			}
 		}
+
+		this.shadows.add(shadow);
 	}
 
 	/**
 	 * Verify that the amount of shadows specified by parameter coincides with the ones in the chosen directory
 	 * @param providedN
 	 */
-	private void verifyCorrectAmountOfShadows(boolean providedN){
+	private void verifyCorrectAmountOfShadows(boolean providedN) throws ShareException {
 		int numAvailableShadows = this.shadows.size();
 		if(numAvailableShadows != this.n) {
 			if(providedN)	{
-				System.err.println("Specified N=" + this.n + " but there are " + numAvailableShadows + " available shadows, need exactly " + this.n);
-				System.err.println("Aborting.");
-				System.exit(1);
+				throw new ShareException("Specified N=" + this.n + " but there are " + numAvailableShadows + " available shadows, need exactly " + this.n);
 			} else {
 				// Didn't provide N, verify that there are at least K shadows
 				if(this.k > numAvailableShadows) {
-					System.err.println("Specified K=" + this.k + " but there are " + numAvailableShadows+ " available shadows, need at least " + this.k);
-					System.err.println("Aborting.");
-					System.exit(1);
+					throw new ShareException("Specified K=" + this.k + " but there are " + numAvailableShadows+ " available shadows, need at least " + this.k);
 				} else {
 					// All good, use N = number of available shadows (K <= numAvailableShadows && N == numAvailableShadows ===> K <= N)
 					this.n = numAvailableShadows;
@@ -161,129 +339,403 @@ public class Distributor implements Worker {
 		}
 	}
 
+	@Override
+	public void work() throws ShareException {
+		this.parallel = new ParallelSections(this.threads);
+		try {
+			startStatistics();
+			if (this.inPlace) {
+				workInPlace();
+			} else if (this.bandRows > 0) {
+				workInBands();
+			} else {
+				encode();
+				writeCreatedShadows();
+			}
+			finishStatistics();
+		} finally {
+			this.parallel.close();
+		}
+	}
+
 	/**
-	 * Evaluates the given polynomial in 1, 2, 3, ..., {@link #n} modulo 257.
-	 *
-	 * @param p The polynomial to evaluate.
-	 * @return The evaluations, where the first element is the evaluation in 1.
+	 * Distributes the secret without writing any file, returning what {@link #work()} would write instead.
+	 * @return the contents of each shadow's BMP file, in order of shadow number
+	 * @throws ShareException if the pictures are too large to be held in memory, or can't be read
 	 */
-	private BigInteger[] makeEvaluations(final Polynomial p) {
-		BigInteger[] evaluations = new BigInteger[this.n];
-
-		for (int i = 0; i < this.n; i++) {
-			evaluations[i] = p.evaluate(BigInteger.valueOf(i+1)).remainder(BigInteger.valueOf(257));
+	public List<byte[]> workInMemory() throws ShareException {
+		if (!fitsInMemory()) {
+			throw new ShareException("Pictures are too large to be distributed in memory.");
+		}
+		this.parallel = new ParallelSections(this.threads);
+		try {
+			startStatistics();
+			encode();
+			final List<byte[]> shadowFiles = new ArrayList<>();
+			try (RunStatistics.Interval ignored = this.statistics.time(Phase.WRITING)) {
+				for (int i = 0; i < this.n; i++) {
+					shadowFiles.add(getShadowWriter(this.shadows.get(i), i).toByteArray());
+					this.statistics.addBytesWritten(shadowFiles.get(i).length);
+				}
+			}
+			finishStatistics();
+			return shadowFiles;
+		} finally {
+			this.parallel.close();
 		}
-		return evaluations;
 	}
 
 	/**
-	 * Checks whether any of the given values is 256. If so, we should re-evaluate the polynomial that generated these values.
-	 *
-	 * @param evaluations A polynomial's evaluations.
-	 * @return Whether the polynomial that created these values should be re-evaluated.
+	 * @return How long each phase of the last distribution took, and how much was processed.
 	 */
-	private boolean shouldReevaluate(final BigInteger[] evaluations) {
-		for (BigInteger evaluation : evaluations) {
-			if (evaluation.compareTo(BigInteger.valueOf(256)) == 0) {
-				return true;
+	public RunStatistics getStatistics() {
+		return this.statistics;
+	}
+
+	private void startStatistics() {
+		this.statistics.describe(this.secretPicture.getName(), getNumberOfPixels(), getSectionCount(), this.k, this.n);
+		this.statistics.start();
+	}
+
+	/**
+	 * Stops timing, prints how long each phase took if asked to with -stats, and exports every metric if asked to with
+	 * -metrics. The report goes to standard error, like errors do.
+	 */
+	private void finishStatistics() throws ShareException {
+		this.statistics.countShadows(this.n, this.n);
+		this.statistics.finish();
+		if (this.printStatistics) {
+			System.err.println(this.statistics.summary());
+		}
+		if (this.metricsFile != null) {
+			try {
+				MetricsExporter.export(this.statistics, this.metricsFile);
+			} catch (IOException e) {
+				throw new ShareException("Error writing metrics: " + e.getMessage(), e);
 			}
 		}
-		return false;
 	}
 
-	@Override
-	public void work() {
-		final int numberOfPixels = this.secretPicture.getWidth() * this.secretPicture.getHeight();
-		final byte[] randomPixels = new byte[numberOfPixels];
-		for (int i = 0; i < numberOfPixels; i++) {
-			randomPixels[i] = (byte) (this.secretPicture.getPictureData()[i] ^ this.rnd.nextInt(256));
+	/**
+	 * Masks the secret and hides it in the picture data of every shadow, all in memory
+	 */
+	private void encode() throws ShareException {
+		// Picture data is only read once every picture was validated. Bands stream it, and patching shadows in place
+		// only reads the ranges it modifies
+		loadPictureData();
+
+		final int numberOfPixels = (int) getNumberOfPixels();
+		final byte[] randomPixels;
+		try (RunStatistics.Interval ignored = this.statistics.time(Phase.MASKING)) {
+			randomPixels = Arrays.copyOf(this.secretPicture.getPictureData(), numberOfPixels);
+			Keystream.xor(this.seed, 0, randomPixels, numberOfPixels, this.parallel);
 		}
 
-		int j = 0;
-		int consumedBytes = 0;
+		final byte[][] shadowData = new byte[this.n][];
+		for (int i = 0; i < this.n; i++) {
+			shadowData[i] = this.shadows.get(i).getPictureData();
+		}
 
-		do {
+		this.parallel.process((int) getSectionCount(), (from, to) -> encodeSections(randomPixels, shadowData, from, to));
+	}
 
-			// build polynomial
-			Polynomial p = new Polynomial(0, 0);
-			for (int i = 0; i < this.k; i++) {
-				int b = randomPixels[consumedBytes++];
-				if(b < 0){
-					b += 256;
-				}
-				p = p.plus(new Polynomial(b, i));
+	/**
+	 * Distributes the secret streaming it in bands of {@link #bandRows} rows, instead of loading the secret and the
+	 * shadows whole. For each band, the secret's bytes are masked and encoded, and the matching bytes of every shadow
+	 * are read, modified and written out. Only one band of the secret and one band of each shadow are held in memory
+	 * at once. Each shadow is written to a temporary file next to it, which replaces it once all bands are written
+	 * (see {@link BmpWriter#openPictureData()}).
+	 * Output is the same as {@link #work()} without bands.
+	 */
+	private void workInBands() throws ShareException {
+		final long sections = getSectionCount();
+		final int sectionsPerBand = getSectionsPerBand(sections);
+		final byte[] randomPixels = new byte[sectionsPerBand * this.k];
+		final byte[][] shadowData = new byte[this.n][8 * sectionsPerBand];
+		final Keystream keystream = new Keystream(this.seed);
+
+		final List<DataInputStream> shadowInputs = new ArrayList<>();
+		final List<OutputStream> shadowOutputs = new ArrayList<>();
+		IOException error = null;
+		try (DataInputStream secretInput = new DataInputStream(this.secretPicture.openPictureData())) {
+			for (int i = 0; i < this.n; i++) {
+				final BmpParser shadow = this.shadows.get(i);
+				shadowInputs.add(new DataInputStream(shadow.openPictureData()));
+				shadowOutputs.add(getShadowWriter(shadow, i).openPictureData());
 			}
 
-			boolean done = false;
-			BigInteger[] evaluations;
+			for (long firstSection = 0; firstSection < sections; firstSection += sectionsPerBand) {
+				final int bandSections = (int) Math.min(sectionsPerBand, sections - firstSection);
 
-			do {
+				try (RunStatistics.Interval ignored = this.statistics.time(Phase.LOADING)) {
+					secretInput.readFully(randomPixels, 0, bandSections * this.k);
+					for (int i = 0; i < this.n; i++) {
+						shadowInputs.get(i).readFully(shadowData[i], 0, 8 * bandSections);
+					}
+				}
+				this.statistics.addBytesRead((long) bandSections * (this.k + 8 * this.n));
+				try (RunStatistics.Interval ignored = this.statistics.time(Phase.MASKING)) {
+					keystream.xor(randomPixels, bandSections * this.k);
+				}
 
-				evaluations = makeEvaluations(p);
+				this.parallel.process(bandSections, (from, to) -> encodeSections(randomPixels, shadowData, from, to));
 
-				if (shouldReevaluate(evaluations)) {
-					for (int i = 0; i < p.getCoefficients().length; i++) {
-						// Find the first non-zero coefficient and subtract 1 to it
-						BigInteger coef = p.getCoefficientAt(i);
-						if (coef.compareTo(BigInteger.valueOf(0)) != 0) {
-							p.alterCoefficientAt(i, coef.subtract(BigInteger.valueOf(1)));
-							break;
-						}
+				try (RunStatistics.Interval ignored = this.statistics.time(Phase.WRITING)) {
+					for (int i = 0; i < this.n; i++) {
+						shadowOutputs.get(i).write(shadowData[i], 0, 8 * bandSections);
 					}
-				} else {
-					done = true;
 				}
+			}
 
-			} while (!done);
+			// Copy the rest of each shadow as is
+			try (RunStatistics.Interval ignored = this.statistics.time(Phase.WRITING)) {
+				final byte[] buffer = shadowData[0];
+				for (int i = 0; i < this.n; i++) {
+					int read;
+					while ((read = shadowInputs.get(i).read(buffer)) != -1) {
+						shadowOutputs.get(i).write(buffer, 0, read);
+						this.statistics.addBytesRead(read);
+					}
+					shadowInputs.get(i).close();
+					shadowOutputs.get(i).close();
+				}
+			}
+		} catch (IOException e) {
+			error = e;
+		} finally {
+			for (Closeable stream : shadowInputs) {
+				closeQuietly(stream);
+			}
+			// Shadows that were not completely written are discarded, leaving the original file untouched
+			for (Closeable stream : shadowOutputs) {
+				closeQuietly(stream);
+			}
+		}
+		if (error != null) {
+			throw new ShareException("Error writing shadows: " + error.getMessage(), error);
+		}
+		for (int i = 0; i < this.n; i++) {
+			this.statistics.addBytesWritten(getShadowWriter(this.shadows.get(i), i).getFileSize());
+		}
+	}
 
-			// update data in file
+	/**
+	 * Distributes the secret patching each shadow in place, instead of rewriting it. Only the seed, shadow number and
+	 * secret dimensions in the header, and the first {@code 8 * sections} bytes of picture data are read and written;
+	 * the rest of each shadow, including its palette, is left as is. When distributing in bands, one band is read,
+	 * encoded and written at a time, otherwise all sections are at once.
+	 * Recovering from the patched shadows reveals the same secret as from the ones {@link #work()} writes, but shadows
+	 * are not replaced atomically: if an error occurs, they may be left partially modified.
+	 */
+	private void workInPlace() throws ShareException {
+		final long sections = getSectionCount();
+		final int sectionsPerBand = this.bandRows > 0 ? getSectionsPerBand(sections) : (int) sections;
+		final byte[] randomPixels = new byte[sectionsPerBand * this.k];
+		final byte[][] shadowData = new byte[this.n][];
+
+		final List<BmpPatcher> patchers = new ArrayList<>();
+		Exception error = null;
+		try {
 			for (int i = 0; i < this.n; i++) {
-				final BmpParser pa = this.shadows.get(i);
-				hideByte((byte)evaluations[i].intValue(), j, pa);
+				patchers.add(new BmpPatcher(this.shadows.get(i)));
+			}
+
+			for (long firstSection = 0; firstSection < sections; firstSection += sectionsPerBand) {
+				final int bandSections = (int) Math.min(sectionsPerBand, sections - firstSection);
+				final long shadowOffset = 8L * firstSection;
+
+				// Read the band of every shadow concurrently with the band of the secret
+				final List<Future<byte[]>> reads = new ArrayList<>();
+				try (RunStatistics.Interval ignored = this.statistics.time(Phase.LOADING)) {
+					for (BmpParser shadow : this.shadows) {
+						reads.add(IoTasks.submit(() -> shadow.readPictureData(shadowOffset, 8 * bandSections)));
+					}
+					readSecret(firstSection * this.k, randomPixels, bandSections * this.k);
+				}
+				try (RunStatistics.Interval ignored = this.statistics.time(Phase.MASKING)) {
+					Keystream.xor(this.seed, firstSection * this.k, randomPixels, bandSections * this.k, this.parallel);
+				}
+				try (RunStatistics.Interval ignored = this.statistics.time(Phase.LOADING)) {
+					for (int i = 0; i < this.n; i++) {
+						shadowData[i] = IoTasks.get(reads.get(i));
+					}
+				}
+				this.statistics.addBytesRead((long) bandSections * (this.k + 8 * this.n));
+
+				this.parallel.process(bandSections, (from, to) -> encodeSections(randomPixels, shadowData, from, to));
+
+				try (RunStatistics.Interval ignored = this.statistics.time(Phase.WRITING)) {
+					final List<Future<Void>> writes = new ArrayList<>();
+					for (int i = 0; i < this.n; i++) {
+						final BmpPatcher patcher = patchers.get(i);
+						final byte[] data = shadowData[i];
+						writes.add(IoTasks.submit(() -> {
+							patcher.patchPictureData(shadowOffset, data, 8 * bandSections);
+							return null;
+						}));
+					}
+					for (Future<Void> write : writes) {
+						IoTasks.get(write);
+					}
+				}
+				this.statistics.addBytesWritten(8L * bandSections * this.n);
 			}
-			j++;
-		} while (consumedBytes < numberOfPixels && (j+1)*k < numberOfPixels);
 
-		writeCreatedShadows();
+			try (RunStatistics.Interval ignored = this.statistics.time(Phase.WRITING)) {
+				for (int i = 0; i < this.n; i++) {
+					final BmpPatcher patcher = patchers.get(i);
+					patcher.patchReservedBytes(this.seed, i + 1, this.field);
+					patcher.patchSecretDimensions(this.secretPicture.getWidth(), this.secretPicture.getHeight());
+					patcher.close();
+					this.statistics.addBytesWritten(12);
+				}
+			}
+		} catch (Exception e) {
+			error = e;
+		} finally {
+			for (Closeable patcher : patchers) {
+				closeQuietly(patcher);
+			}
+		}
+		if (error != null) {
+			throw new ShareException("Error writing shadows: " + error.getMessage(), error);
+		}
+	}
 
+	/**
+	 * Reads a range of the secret's picture data. Bytes past the end of the picture data read as zeros.
+	 * @param offset position within the secret's picture data of the first byte to read
+	 * @param destination where to store the bytes read
+	 * @param length how many bytes to read
+	 * @throws IOException
+	 */
+	private void readSecret(long offset, byte[] destination, int length) throws IOException {
+		final int available = (int) Math.max(0, Math.min(length, this.secretPicture.getPictureSize() - offset));
+		System.arraycopy(this.secretPicture.readPictureData(offset, available), 0, destination, 0, available);
+		Arrays.fill(destination, available, length, (byte) 0);
+	}
+
+	/**
+	 * @return The number of sections the secret is split in. Every section but the last complete one is encoded, but
+	 * always at least one.
+	 */
+	private long getSectionCount() {
+		return Math.max(1, (getNumberOfPixels() - 1) / this.k);
+	}
+
+	/**
+	 * @return The number of pixels of the secret.
+	 */
+	private long getNumberOfPixels() {
+		return (long) this.secretPicture.getWidth() * this.secretPicture.getHeight();
+	}
+
+	/**
+	 * @param sections The number of sections the secret is split in.
+	 * @return The number of sections in each band of {@link #bandRows} rows, such that the band of each shadow fits
+	 * in an array.
+	 */
+	private int getSectionsPerBand(long sections) {
+		final long bandSections = Math.min(sections, (long) this.bandRows * this.secretPicture.getWidth() / this.k);
+		return (int) Math.max(1, Math.min(bandSections, BmpParser.MAX_LOADABLE_PICTURE_SIZE / 8));
+	}
+
+	/**
+	 * Builds the polynomial of each section in the given range, and hides its evaluations in the shadows. Sections
+	 * only touch their own bytes, so different ranges can be encoded concurrently.
+	 * <p>
+	 * Sections are encoded in blocks of {@link #BLOCK_SECTIONS}, one phase at a time for the whole block, so that each
+	 * phase can be timed without timing every section, and so that {@link VandermondeEncoder} can evaluate every
+	 * polynomial of a block at once.
+	 *
+	 * @param randomPixels The masked secret, where section j starts at {@code j * k}.
+	 * @param shadowData The picture data of each shadow, where section j starts at {@code 8 * j}.
+	 * @param from First section to encode, inclusive.
+	 * @param to Last section to encode, exclusive.
+	 */
+	private void encodeSections(final byte[] randomPixels, final byte[][] shadowData, final int from, final int to) {
+		final VandermondeEncoder.Tile tile = this.encoder.newTile(Math.min(BLOCK_SECTIONS, to - from));
+
+		for (int blockStart = from; blockStart < to; blockStart += BLOCK_SECTIONS) {
+			final int blockEnd = Math.min(to, blockStart + BLOCK_SECTIONS);
+
+			// build and evaluate polynomials
+			try (RunStatistics.Interval ignored = this.statistics.time(Phase.POLYNOMIAL_BUILD)) {
+				this.encoder.evaluate(tile, randomPixels, blockStart, blockEnd);
+			}
+
+			// adjust polynomials until no evaluation is 256
+			try (RunStatistics.Interval ignored = this.statistics.time(Phase.OVERFLOW)) {
+				this.encoder.fixOverflows(tile);
+			}
+			this.statistics.addOverflows(tile.getOverflowPolynomials(), tile.getOverflowAdjustments());
+
+			// update data in file
+			try (RunStatistics.Interval ignored = this.statistics.time(Phase.EMBEDDING)) {
+				this.encoder.embed(tile, shadowData, blockStart);
+			}
+		}
 	}
 
 	/**
 	 * Writes files of n shadows that were created
 	 */
-	private void writeCreatedShadows(){
+	private void writeCreatedShadows() throws ShareException {
+		try (RunStatistics.Interval ignored = this.statistics.time(Phase.WRITING)) {
+			writeCreatedShadowsConcurrently();
+		}
 		for (int i = 0; i < this.n; i++) {
-			// write to file
-			BmpParser p = this.shadows.get(i);
-			BmpWriter writer = new BmpWriter.BmpWriterBuilder(p)
-					.file(new File(p.getAbsolutePath()))		//Overwrite shadow header data
-					.seed(this.seed)
-					.shadowNumber(i+1)
-					.secretHeight(secretPicture.getHeight())
-					.secretWidth(secretPicture.getWidth())
-					.build();
-			try {
+			this.statistics.addBytesWritten(getShadowWriter(this.shadows.get(i), i).getFileSize());
+		}
+	}
+
+	private void writeCreatedShadowsConcurrently() throws ShareException {
+		final List<Future<Void>> writes = new ArrayList<>();
+		for (int i = 0; i < this.n; i++) {
+			// write to file, concurrently with the other shadows
+			final BmpWriter writer = getShadowWriter(this.shadows.get(i), i);
+			writes.add(IoTasks.submit(() -> {
 				writer.writeImage();
-			} catch (IOException e) {
-				e.printStackTrace();
+				return null;
+			}));
+		}
+		// Let every shadow be written before reporting the first error
+		Exception error = null;
+		for (Future<Void> write : writes) {
+			try {
+				IoTasks.get(write);
+			} catch (Exception e) {
+				if (error == null) {
+					error = e;
+				}
 			}
 		}
+		if (error != null) {
+			throw new ShareException("Error writing shadows: " + error.getMessage(), error);
+		}
 	}
 
 	/**
-	 * Hides one byte of the secret into eight bytes of the shadow
-	 * @param byteToHide
-	 * @param j
+	 * Builds the writer for the i-th shadow, which overwrites the shadow's file and stores the seed, shadow number and
+	 * secret dimensions in its header
 	 * @param shadow
+	 * @param i
+	 * @return Bmp Writer
 	 */
-	private void hideByte(byte byteToHide, int j, BmpParser shadow){
-		String bits = Integer.toBinaryString(byteToHide & 255 | 256).substring(1);
-		for(int i = 0; i < 8; i++) {
-			byte oldByte = shadow.getPictureData()[8*j+i];
-			String oldByteStr = Integer.toBinaryString(oldByte & 255 | 256).substring(1);
-			String newByteStr = oldByteStr.substring(0,7) + bits.charAt(i);
-			byte newByte = (byte)Integer.parseInt(newByteStr, 2);
-			shadow.getPictureData()[8*j+i] = newByte;
+	private BmpWriter getShadowWriter(BmpParser shadow, int i){
+		return new BmpWriter.BmpWriterBuilder(shadow)
+				.file(shadow.getAbsolutePath() != null ? new File(shadow.getAbsolutePath()) : null)		//Overwrite shadow header data
+				.seed(this.seed)
+				.shadowNumber(i+1, this.field)
+				.secretHeight(secretPicture.getHeight())
+				.secretWidth(secretPicture.getWidth())
+				.build();
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
 		}
 	}
 }
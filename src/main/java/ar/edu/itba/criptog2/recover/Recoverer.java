@@ -1,56 +1,147 @@
 package ar.edu.itba.criptog2.recover;
 
+import ar.edu.itba.criptog2.ShareException;
 import ar.edu.itba.criptog2.Worker;
 import ar.edu.itba.criptog2.util.BmpParser;
 import ar.edu.itba.criptog2.util.BmpWriter;
+import ar.edu.itba.criptog2.util.IoTasks;
+import ar.edu.itba.criptog2.util.Keystream;
+import ar.edu.itba.criptog2.util.Field;
 import ar.edu.itba.criptog2.util.LagrangeInterpolator;
-import ar.edu.itba.criptog2.util.Point;
-import ar.edu.itba.criptog2.util.Polynomial;
+import ar.edu.itba.criptog2.util.LsbCodec;
+import ar.edu.itba.criptog2.util.MetricsExporter;
+import ar.edu.itba.criptog2.util.ParallelSections;
+import ar.edu.itba.criptog2.util.RunStatistics;
+import ar.edu.itba.criptog2.util.RunStatistics.Phase;
 import net.sourceforge.argparse4j.inf.Namespace;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.Optional;
+import java.util.concurrent.Future;
 
 public class Recoverer implements Worker {
 
+	/**
+	 * Secret file name that writes the recovered secret to standard output.
+	 */
+	public static final String STANDARD_OUTPUT = "-";
+
 	private List<BmpParser> pictures = new ArrayList<>();
 
 	private int k;
 
+	private int threads;
+
+	private ParallelSections parallel;
+
+	private int bandRows;
+
+	private Field field;
+
+	private Region region;
+
 	private byte[] secretPicture;
 
 	private String secretFilePath;
 
+	private boolean printStatistics;
+
+	private String metricsFile;
+
+	private final RunStatistics statistics = new RunStatistics("recover", RunStatistics.RECOVER_PHASES);
+
+	/**
+	 * Approximate number of secret bytes per band when the secret is too large to be recovered whole and no band size
+	 * was given.
+	 */
+	private static final int AUTOMATIC_BAND_BYTES = 1 << 24;
+
+	/**
+	 * Number of sections decoded one phase at a time, see {@link #decodeSections}.
+	 */
+	private static final int BLOCK_SECTIONS = 1024;
+
 	private Recoverer() {}
 
-	public static Recoverer createFromNamespace(final Namespace ns) {
+	/**
+	 * Creates a recoverer for the directory and output file given in the command line
+	 * @param ns
+	 * @return the recoverer
+	 * @throws ShareException if the options or shadows are not valid
+	 */
+	public static Recoverer createFromNamespace(final Namespace ns) throws ShareException {
 
 		final Recoverer recoverer = new Recoverer();
 
 		recoverer.k = ns.getInt("k");
 		if(recoverer.k <= 1){
-			System.err.println("K should be greater than or equal to 2.");
-			System.err.println("Aborting.");
-			System.exit(1);
+			throw new ShareException("K should be greater than or equal to 2.");
+		}
+		recoverer.threads = ns.getInt("threads");
+		if(recoverer.threads < 1){
+			throw new ShareException("Number of threads should be greater than or equal to 1.");
+		}
+		recoverer.bandRows = Optional.ofNullable(ns.getInt("band")).orElse(0);
+		if(ns.getInt("band") != null && recoverer.bandRows < 1){
+			throw new ShareException("Band should be at least 1 row.");
 		}
 		recoverer.secretFilePath = ns.getString("secret");
+		recoverer.printStatistics = Boolean.TRUE.equals(ns.getBoolean("stats"));
+		recoverer.metricsFile = ns.getString("metrics");
 
 		//load picture files from path
 		final File[] files = new File(ns.getString("dir")).listFiles();
 		if(files == null) {
-			System.err.println(ns.getString("dir") + " is not a directory or it does not exist. Aborting.");
-			System.exit(1);
+			throw new ShareException(ns.getString("dir") + " is not a directory or it does not exist.");
 		}
 		if(files.length < recoverer.k){
-			System.err.println("There should be at least K files in the given directory");
-			System.err.println("Aborting.");
-			System.exit(1);
+			throw new ShareException("There should be at least K files in the given directory");
 		}
 		recoverer.loadShadows(files);
+
+		// Regions are validated against the secret's dimensions, which are only known once the shadows are loaded
+		if (ns.getString("region") != null) {
+			recoverer.region = Region.parse(ns.getString("region"));
+		} else if (ns.getString("rows") != null) {
+			recoverer.region = Region.parseRows(ns.getString("rows"), recoverer.getSecretWidth());
+		}
+		if (recoverer.region != null) {
+			recoverer.region.verifyWithin(recoverer.getSecretWidth(), recoverer.getSecretHeight());
+		}
+		return recoverer;
+	}
+
+	/**
+	 * Creates a recoverer for already parsed shadows, which writes the secret to the given file with {@link #work()},
+	 * or returns its contents with {@link #workInMemory()}.
+	 * @param shadows the shadows to recover the secret from. Only the first k are used
+	 * @param k the minimum number of shadows needed to recover the secret
+	 * @param threads the number of threads to decode the secret with
+	 * @param secretFilePath where {@link #work()} writes the secret, - for standard output, or null if only
+	 * {@link #workInMemory()} is used
+	 * @return the recoverer
+	 * @throws ShareException if the parameters or shadows are not valid
+	 */
+	public static Recoverer create(List<BmpParser> shadows, int k, int threads, String secretFilePath) throws ShareException {
+		final Recoverer recoverer = new Recoverer();
+		recoverer.k = k;
+		if(recoverer.k <= 1){
+			throw new ShareException("K should be greater than or equal to 2.");
+		}
+		recoverer.threads = threads;
+		if(recoverer.threads < 1){
+			throw new ShareException("Number of threads should be greater than or equal to 1.");
+		}
+		recoverer.secretFilePath = secretFilePath;
+		recoverer.addShadows(shadows.subList(0, Math.min(k, shadows.size())));
 		return recoverer;
 	}
 
@@ -58,157 +149,707 @@ public class Recoverer implements Worker {
 	 * Used in builder to load shadow files to pictures
 	 * @param files
 	 */
-	private void loadShadows(File[] files) {
-		int shadowWidth = 0, shadowHeight = 0;
+	private void loadShadows(File[] files) throws ShareException {
+		// Only the first K shadows are used, probe their headers concurrently
+		final List<Future<BmpParser>> shadows = new ArrayList<>();
 		for (File file : files) {
 			if(file.isFile() && file.getName().endsWith(".bmp")) {
-				BmpParser shadow = null;
-				try {
-					shadow = new BmpParser(file.getPath());
-				} catch (Exception e) {
-					System.err.println("Error opening shadows: " + e.getMessage());
-					System.err.println("Aborting.");
-					System.exit(1);
-				}
-				if (shadowWidth == 0 && shadowHeight == 0) {
-					shadowWidth = shadow.getWidth();
-					shadowHeight = shadow.getHeight();
-				} else {
-					if (shadow.getWidth() != shadowWidth || shadow.getHeight() != shadowHeight) {
-						System.err.println("All shadow images should have the same size.");
-						System.err.println("Aborting.");
-						System.exit(1);
-					}
+				shadows.add(IoTasks.submit(() -> BmpParser.readHeader(file.getPath())));
+				if(shadows.size() == k) {
+					break;
 				}
-				this.pictures.add(shadow);
-				if(this.pictures.size() == k) {
-					return;
+			}
+		}
+
+		final List<BmpParser> parsedShadows = new ArrayList<>();
+		for (Future<BmpParser> future : shadows) {
+			try {
+				parsedShadows.add(IoTasks.get(future));
+			} catch (Exception e) {
+				throw new ShareException("Error opening shadows: " + e.getMessage(), e);
+			}
+		}
+		addShadows(parsedShadows);
+	}
+
+	/**
+	 * Validate shadows and add them to pictures
+	 * @param shadows
+	 */
+	private void addShadows(List<BmpParser> shadows) throws ShareException {
+		int shadowWidth = 0, shadowHeight = 0;
+		for (BmpParser shadow : shadows) {
+			if (shadowWidth == 0 && shadowHeight == 0) {
+				shadowWidth = shadow.getWidth();
+				shadowHeight = shadow.getHeight();
+			} else {
+				if (shadow.getWidth() != shadowWidth || shadow.getHeight() != shadowHeight) {
+					throw new ShareException("All shadow images should have the same size.");
 				}
 			}
+			if (this.field == null) {
+				this.field = shadow.getField();
+			} else if (shadow.getField() != this.field) {
+				throw new ShareException("All shadows should have been shared in the same field.");
+			}
+			this.pictures.add(shadow);
 		}
 
 		//Make sure we found at least K suitable shadows
 		if(pictures.size() < k) {
-			System.err.println("Couldn't load at least " + k + " shadow pictures.");
-			System.err.println("Aborting.");
-			System.exit(1);
+			throw new ShareException("Couldn't load at least " + k + " shadow pictures.");
 		}
 	}
 
+	/**
+	 * Read the first bytes of the picture data of every shadow concurrently. Sections are hidden from the start of the
+	 * picture data, so this is all recovery needs, no matter how large the shadows are.
+	 * @param length how many bytes to read from each shadow
+	 * @return the bytes read, in the same order as {@link #pictures}
+	 */
+	private byte[][] readHiddenData(int length) throws ShareException {
+		final byte[][] shadowData;
+		try (RunStatistics.Interval ignored = statistics.time(Phase.LOADING)) {
+			shadowData = readHiddenDataConcurrently(length);
+		}
+		statistics.addBytesRead((long) length * shadowData.length);
+		return shadowData;
+	}
+
+	private byte[][] readHiddenDataConcurrently(int length) throws ShareException {
+		final List<Future<byte[]>> reads = new ArrayList<>();
+		for (BmpParser picture : pictures) {
+			reads.add(IoTasks.submit(() -> picture.readPictureData(0, length)));
+		}
+		final byte[][] shadowData = new byte[reads.size()][];
+		for (int i = 0; i < shadowData.length; i++) {
+			try {
+				shadowData[i] = IoTasks.get(reads.get(i));
+			} catch (Exception e) {
+				throw new ShareException("Error opening shadows: " + e.getMessage(), e);
+			}
+		}
+		return shadowData;
+	}
+
 
 	@Override
-	public void work() {
-		List<Point> points;
-		
+	public void work() throws ShareException {
+		parallel = new ParallelSections(threads);
+		try {
+			recover();
+		} finally {
+			parallel.close();
+		}
+	}
+
+	/**
+	 * Recovers the secret, or {@link #region} of it, and writes it out. Sections are decoded with {@link #parallel}.
+	 */
+	private void recover() throws ShareException {
+		if (region != null) {
+			workInRegion();
+			return;
+		}
+		startStatistics();
 		LagrangeInterpolator lagrangeInterpolator = new LagrangeInterpolator();
-		int byteCount = 0;
-		BigInteger[] coeffs;
-		int height = k == 8 ? pictures.get(0).getHeight() : pictures.get(0).getSecretHeight();
-		int width = k == 8 ? pictures.get(0).getWidth() : pictures.get(0).getSecretWidth();
-		int secretPictureSize = width * height;
-		secretPicture = new byte[secretPictureSize];
-		int j = 0;
-
-		while(byteCount < secretPictureSize && (j+1)*k < secretPictureSize) {
-			//Step 1: Get the first eight bytes of each picture
-			points = getPoints(j);
-
-			//Step 2: Find polynomial
-			Polynomial polynomial = lagrangeInterpolator.interpolate(points,257);
-			coeffs = polynomial.getCoefficients();
-			
-//			System.out.println(polynomial);
-
-			//Step 3: Build piece of secret picture
-			//When the coefficient of the largest degree of the polynomial is 0, it is written.
-			for (int i = 0; i < k; i++) {
-				if (i < coeffs.length) {
-					secretPicture[byteCount++] = (byte)coeffs[i].intValue();
-				} else {
-					secretPicture[byteCount++] = 0;
+		// Shadow numbers are the same for every section, so the interpolation matrix is computed only once
+		final int[][] weights = getWeights(lagrangeInterpolator);
+		final long sections = getSectionCount();
+
+		// Secrets too large for arrays are always streamed in bands
+		if (bandRows == 0 && !fitsInMemory()) {
+			bandRows = Math.max(1, AUTOMATIC_BAND_BYTES / Math.max(1, getSecretWidth()));
+		}
+
+		try {
+			if (bandRows > 0) {
+				final BmpWriter bmpWriter = getBmpWriter();
+				workInBands(lagrangeInterpolator, weights, sections, bmpWriter);
+				statistics.addBytesWritten(bmpWriter.getFileSize());
+			} else {
+				decode(lagrangeInterpolator, weights, sections);
+				BmpWriter bmpWriter = getBmpWriter();
+
+				//Write secret picture
+				try (RunStatistics.Interval ignored = statistics.time(Phase.WRITING)) {
+					if (writesToStandardOutput()) {
+						try (OutputStream out = bmpWriter.openPictureData(System.out)) {
+							out.write(secretPicture);
+						}
+					} else {
+						bmpWriter.writeImage();
+					}
 				}
+				statistics.addBytesWritten(bmpWriter.getFileSize());
 			}
-//			for (int i = coeffs.length; i < k ; i++) {
-//				secretPicture[byteCount++] = 0;
-//			}
-//			for(int c : coeffs){
-//				secretPicture[byteCount++] = (byte)c;
-//			}
-			j++;
+		} catch (IOException e) {
+			throw new ShareException("Error writing revealed secret: " + e.getMessage(), e);
 		}
+		finishStatistics();
+	}
 
-		//Step 5: Reorder image
-		revealSecret(pictures.get(0).getSeed());
+	/**
+	 * Recovers the secret without writing any file, returning what {@link #work()} would write instead.
+	 * @return the contents of the secret's BMP file
+	 * @throws ShareException if the secret is too large to be held in memory, or the shadows can't be read
+	 */
+	public byte[] workInMemory() throws ShareException {
+		parallel = new ParallelSections(threads);
+		try {
+			return recoverInMemory();
+		} finally {
+			parallel.close();
+		}
+	}
+
+	/**
+	 * Recovers the secret, or {@link #region} of it, into the contents of its BMP file. Sections are decoded with
+	 * {@link #parallel}.
+	 */
+	private byte[] recoverInMemory() throws ShareException {
+		if (region != null) {
+			return workInRegionInMemory();
+		}
+		if (!fitsInMemory()) {
+			throw new ShareException("Secret is too large to be recovered in memory.");
+		}
+		startStatistics();
+		LagrangeInterpolator lagrangeInterpolator = new LagrangeInterpolator();
+		decode(lagrangeInterpolator, getWeights(lagrangeInterpolator), getSectionCount());
+		final byte[] secret;
+		try (RunStatistics.Interval ignored = statistics.time(Phase.WRITING)) {
+			secret = getBmpWriter().toByteArray();
+		}
+		statistics.addBytesWritten(secret.length);
+		finishStatistics();
+		return secret;
+	}
+
+	/**
+	 * Recovers only {@link #region}, writing it as a BMP of its own to the secret file or standard output.
+	 */
+	private void workInRegion() throws ShareException {
+		final List<long[]> ranges = getRegionRanges();
+		startRegionStatistics(ranges);
+		final BmpWriter bmpWriter = getRegionWriter();
+		try (OutputStream out = writesToStandardOutput() ? bmpWriter.openPictureData(System.out) : bmpWriter.openPictureData()) {
+			decodeRegion(ranges, out);
+		} catch (IOException e) {
+			throw new ShareException("Error writing revealed secret: " + e.getMessage(), e);
+		}
+		statistics.addBytesWritten(bmpWriter.getFileSize());
+		finishStatistics();
+	}
+
+	/**
+	 * Recovers only {@link #region}, returning the contents of its BMP file.
+	 */
+	private byte[] workInRegionInMemory() throws ShareException {
+		if ((long) region.getWidth() * region.getHeight() > BmpParser.MAX_LOADABLE_PICTURE_SIZE) {
+			throw new ShareException("Region is too large to be recovered in memory.");
+		}
+		final List<long[]> ranges = getRegionRanges();
+		startRegionStatistics(ranges);
+		final BmpWriter bmpWriter = getRegionWriter();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) bmpWriter.getFileSize());
+		try (OutputStream out = bmpWriter.openPictureData(bytes)) {
+			decodeRegion(ranges, out);
+		} catch (IOException e) {
+			throw new ShareException("Error writing revealed secret: " + e.getMessage(), e);
+		}
+		statistics.addBytesWritten(bytes.size());
+		finishStatistics();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Turns {@link #region} into the ranges of the secret's picture data it covers, in the order they are stored: one
+	 * per row of the region, or a single one if the region spans whole rows. Ranges are split so that none is larger
+	 * than a band.
+	 * @return the ranges, each as {first byte, last byte exclusive}
+	 */
+	private List<long[]> getRegionRanges() {
+		final long secretWidth = getSecretWidth();
+		// Rows are stored bottom up
+		final long firstRow = getSecretHeight() - region.getY() - region.getHeight();
+		final List<long[]> rows = new ArrayList<>();
+		if (region.getWidth() == secretWidth) {
+			rows.add(new long[] {firstRow * secretWidth, (firstRow + region.getHeight()) * secretWidth});
+		} else {
+			for (long row = firstRow; row < firstRow + region.getHeight(); row++) {
+				final long start = row * secretWidth + region.getX();
+				rows.add(new long[] {start, start + region.getWidth()});
+			}
+		}
+
+		final long bandBytes = getRegionBandBytes();
+		final List<long[]> ranges = new ArrayList<>();
+		for (long[] row : rows) {
+			for (long start = row[0]; start < row[1]; start += bandBytes) {
+				ranges.add(new long[] {start, Math.min(row[1], start + bandBytes)});
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * @return How many bytes of the region are recovered at once: {@link #bandRows} rows of it if given, or about
+	 * {@link #AUTOMATIC_BAND_BYTES} otherwise.
+	 */
+	private long getRegionBandBytes() {
+		return bandRows > 0 ? (long) bandRows * region.getWidth() : AUTOMATIC_BAND_BYTES;
+	}
+
+	/**
+	 * @return The first section that holds byte {@code start} of the secret's picture data.
+	 */
+	private long getFirstSection(long start) {
+		return start / k;
+	}
+
+	/**
+	 * @return How many of the distributed sections hold bytes of the range [start, end) of the secret's picture data.
+	 * Bytes after the last distributed section are held by none.
+	 */
+	private int getRangeSections(long start, long end) {
+		final long lastSection = Math.min((end + k - 1) / k, getSectionCount());
+		return (int) Math.max(0, lastSection - getFirstSection(start));
+	}
+
+	private void startRegionStatistics(List<long[]> ranges) {
+		long sections = 0;
+		for (long[] range : ranges) {
+			sections += getRangeSections(range[0], range[1]);
+		}
+		statistics.describe(secretFilePath, (long) region.getWidth() * region.getHeight(), sections, k, 0);
+		statistics.start();
+	}
+
+	/**
+	 * Recovers the given ranges of the secret's picture data and writes them to the given stream, in order. Ranges are
+	 * recovered in batches of about a band: for each batch, only the sections that hold bytes of its ranges are read
+	 * from each shadow, with positional reads, and decoded. Each range is then unmasked with the keystream jumped
+	 * straight to its first byte, so nothing before it is ever read, decoded or generated.
+	 *
+	 * @param ranges The ranges to recover, as returned by {@link #getRegionRanges()}.
+	 * @param out Where to write the recovered bytes.
+	 * @throws IOException If an I/O error occurs writing the region.
+	 * @throws ShareException If the shadows can't be read.
+	 */
+	private void decodeRegion(List<long[]> ranges, OutputStream out) throws IOException, ShareException {
+		final LagrangeInterpolator lagrangeInterpolator = new LagrangeInterpolator();
+		final int[][] weights = getWeights(lagrangeInterpolator);
+		final long bandBytes = getRegionBandBytes();
+		final int seed = pictures.get(0).getSeed();
 
-		//Write secret picture
-		BmpWriter bmpWriter = getBmpWriter(height, width);
+		// Every batch is read through the same channel of each shadow
+		final FileChannel[] channels = openPictureDataChannels();
 		try {
-			bmpWriter.writeImage();
-			System.out.println("Wrote ouput to: " + secretFilePath);
+			int first = 0;
+			while (first < ranges.size()) {
+				// Take ranges until they add up to a band, at least one
+				int last = first;
+				long batchBytes = 0;
+				int batchSections = 0;
+				do {
+					final long[] range = ranges.get(last++);
+					batchBytes += range[1] - range[0];
+					batchSections += getRangeSections(range[0], range[1]);
+				} while (last < ranges.size() && batchBytes + ranges.get(last)[1] - ranges.get(last)[0] <= bandBytes);
+				final List<long[]> batch = ranges.subList(first, last);
+
+				// Sections of consecutive ranges are packed together, in the same order in every shadow and in the secret
+				final byte[][] shadowData = readRegionData(channels, batch, batchSections);
+				final byte[] secret = new byte[batchSections * k];
+				parallel.process(batchSections, (from, to) -> decodeSections(lagrangeInterpolator, weights, shadowData, secret, from, to));
+
+				int packedSection = 0;
+				for (long[] range : batch) {
+					final int sections = getRangeSections(range[0], range[1]);
+					final int start = packedSection * k + (int) (range[0] - getFirstSection(range[0]) * k);
+					final int decodedLength = sections == 0 ? 0 : (int) (Math.min(range[1], (getFirstSection(range[0]) + sections) * k) - range[0]);
+					// Bytes after the last section were not distributed, so they are revealed from zeros
+					final byte[] tail = new byte[(int) (range[1] - range[0]) - decodedLength];
+					try (RunStatistics.Interval ignored = statistics.time(Phase.UNMASKING)) {
+						final Keystream keystream = new Keystream(seed, range[0]);
+						keystream.xor(secret, start, start + decodedLength);
+						keystream.xor(tail, tail.length);
+					}
+					try (RunStatistics.Interval ignored = statistics.time(Phase.WRITING)) {
+						if (decodedLength > 0) {
+							out.write(secret, start, decodedLength);
+						}
+						out.write(tail);
+					}
+					packedSection += sections;
+				}
+				first = last;
+			}
+		} finally {
+			closeChannels(channels);
+		}
+	}
+
+	/**
+	 * Reads the sections that hold bytes of the given ranges from every shadow concurrently, each shadow with positional
+	 * reads of only those sections, straight into its packed array.
+	 * @param channels the channel each shadow is read from, in the same order as {@link #pictures}
+	 * @param ranges the ranges of the secret's picture data to read the sections of
+	 * @param sections how many sections the ranges are held in, in total
+	 * @return the sections of each shadow, packed in the order of the ranges, in the same order as {@link #pictures}
+	 */
+	private byte[][] readRegionData(FileChannel[] channels, List<long[]> ranges, int sections) throws ShareException {
+		final byte[][] shadowData;
+		try (RunStatistics.Interval ignored = statistics.time(Phase.LOADING)) {
+			final List<Future<byte[]>> reads = new ArrayList<>();
+			for (int i = 0; i < pictures.size(); i++) {
+				final BmpParser picture = pictures.get(i);
+				final FileChannel channel = channels[i];
+				reads.add(IoTasks.submit(() -> {
+					final byte[] data = new byte[8 * sections];
+					int position = 0;
+					for (long[] range : ranges) {
+						final int length = 8 * getRangeSections(range[0], range[1]);
+						if (length > 0) {
+							picture.readPictureData(channel, 8 * getFirstSection(range[0]), data, position, length);
+							position += length;
+						}
+					}
+					return data;
+				}));
+			}
+			shadowData = new byte[reads.size()][];
+			for (int i = 0; i < shadowData.length; i++) {
+				try {
+					shadowData[i] = IoTasks.get(reads.get(i));
+				} catch (Exception e) {
+					throw new ShareException("Error opening shadows: " + e.getMessage(), e);
+				}
+			}
+		}
+		statistics.addBytesRead(8L * sections * shadowData.length);
+		return shadowData;
+	}
+
+	/**
+	 * Opens a channel over the picture data of every shadow.
+	 * @return the channel of each shadow, null for shadows whose picture data is loaded, in the same order as
+	 * {@link #pictures}
+	 */
+	private FileChannel[] openPictureDataChannels() throws ShareException {
+		final FileChannel[] channels = new FileChannel[pictures.size()];
+		try {
+			for (int i = 0; i < channels.length; i++) {
+				channels[i] = pictures.get(i).openPictureDataChannel();
+			}
 		} catch (IOException e) {
-			System.err.println("Error writing revealed secret: " + e.getMessage());
-			System.err.println("Aborting.");
-			System.exit(1);
+			closeChannels(channels);
+			throw new ShareException("Error opening shadows: " + e.getMessage(), e);
+		}
+		return channels;
+	}
+
+	private static void closeChannels(FileChannel[] channels) {
+		for (FileChannel channel : channels) {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+					// Shadows are only read, so nothing is lost
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return How long each phase of the last recovery took, and how much was processed.
+	 */
+	public RunStatistics getStatistics() {
+		return statistics;
+	}
+
+	private void startStatistics() {
+		statistics.describe(secretFilePath, getSecretPictureSize(), getSectionCount(), k, 0);
+		statistics.start();
+	}
+
+	/**
+	 * Stops timing, prints how long each phase took if asked to with -stats, and exports every metric if asked to with
+	 * -metrics. The report goes to standard error, so that it never mixes with a secret written to standard output.
+	 */
+	private void finishStatistics() throws ShareException {
+		statistics.countShadows(pictures.size(), 0);
+		statistics.finish();
+		if (printStatistics) {
+			System.err.println(statistics.summary());
+		}
+		if (metricsFile != null) {
+			try {
+				MetricsExporter.export(statistics, metricsFile);
+			} catch (IOException e) {
+				throw new ShareException("Error writing metrics: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Decodes and reveals the whole secret into {@link #secretPicture}
+	 * @param lagrangeInterpolator The interpolator to use.
+	 * @param weights The interpolation matrix for the loaded shadows.
+	 * @param sections The number of sections to decode.
+	 */
+	private void decode(LagrangeInterpolator lagrangeInterpolator, int[][] weights, long sections) throws ShareException {
+		secretPicture = new byte[(int) getSecretPictureSize()];
+		final byte[][] shadowData = readHiddenData(8 * (int) sections);
+		parallel.process((int) sections, (from, to) -> decodeSections(lagrangeInterpolator, weights, shadowData, secretPicture, from, to));
+
+		//Step 5: Reorder image
+		//XORing with the same keystream used to hide the picture reveals the secret
+		try (RunStatistics.Interval ignored = statistics.time(Phase.UNMASKING)) {
+			Keystream.xor(pictures.get(0).getSeed(), 0, secretPicture, secretPicture.length, parallel);
+		}
+	}
+
+	private int getSecretWidth() {
+		return k == 8 ? pictures.get(0).getWidth() : pictures.get(0).getSecretWidth();
+	}
+
+	private int getSecretHeight() {
+		return k == 8 ? pictures.get(0).getHeight() : pictures.get(0).getSecretHeight();
+	}
+
+	private long getSecretPictureSize() {
+		return (long) getSecretWidth() * getSecretHeight();
+	}
+
+	/**
+	 * @return The number of sections that were distributed: every section but the last complete one.
+	 */
+	private long getSectionCount() {
+		return Math.max(0, (getSecretPictureSize() - 1) / k);
+	}
+
+	/**
+	 * @return Whether the secret and the data read from each shadow fit in arrays, so the secret can be recovered whole
+	 * instead of in bands.
+	 */
+	private boolean fitsInMemory() {
+		return getSecretPictureSize() <= BmpParser.MAX_LOADABLE_PICTURE_SIZE && 8 * getSectionCount() <= BmpParser.MAX_LOADABLE_PICTURE_SIZE;
+	}
+
+	/**
+	 * Recovers the secret streaming it in bands of {@link #bandRows} rows, instead of loading the shadows whole. For
+	 * each band, the matching bytes of every shadow are read, and the band of the secret is decoded, revealed and
+	 * written out right away. Only one band of the secret and one band of each shadow are held in memory at once.
+	 * Output is the same as without bands.
+	 *
+	 * @param lagrangeInterpolator The interpolator to use.
+	 * @param weights The interpolation matrix for the loaded shadows.
+	 * @param sections The number of sections to decode.
+	 * @param bmpWriter The writer of the secret picture.
+	 * @throws IOException If an I/O error occurs reading the shadows or writing the secret.
+	 */
+	private void workInBands(LagrangeInterpolator lagrangeInterpolator, int[][] weights, long sections, BmpWriter bmpWriter) throws IOException {
+		final long rowSections = Math.min(sections, (long) bandRows * bmpWriter.getWidth() / k);
+		final int sectionsPerBand = (int) Math.max(1, Math.min(rowSections, BmpParser.MAX_LOADABLE_PICTURE_SIZE / 8));
+		final byte[] secretBand = new byte[sectionsPerBand * k];
+		final byte[][] shadowData = new byte[k][8 * sectionsPerBand];
+		final Keystream keystream = new Keystream(pictures.get(0).getSeed());
+
+		final List<DataInputStream> shadowInputs = new ArrayList<>();
+		try {
+			for (BmpParser picture : pictures) {
+				shadowInputs.add(new DataInputStream(picture.openPictureData()));
+			}
+			try (OutputStream out = writesToStandardOutput() ? bmpWriter.openPictureData(System.out) : bmpWriter.openPictureData()) {
+				for (long firstSection = 0; firstSection < sections; firstSection += sectionsPerBand) {
+					final int bandSections = (int) Math.min(sectionsPerBand, sections - firstSection);
+					try (RunStatistics.Interval ignored = statistics.time(Phase.LOADING)) {
+						for (int i = 0; i < k; i++) {
+							shadowInputs.get(i).readFully(shadowData[i], 0, 8 * bandSections);
+						}
+					}
+					statistics.addBytesRead(8L * bandSections * k);
+
+					parallel.process(bandSections, (from, to) -> decodeSections(lagrangeInterpolator, weights, shadowData, secretBand, from, to));
+
+					try (RunStatistics.Interval ignored = statistics.time(Phase.UNMASKING)) {
+						keystream.xor(secretBand, bandSections * k);
+					}
+					try (RunStatistics.Interval ignored = statistics.time(Phase.WRITING)) {
+						out.write(secretBand, 0, bandSections * k);
+					}
+				}
+
+				// Bytes after the last section were not distributed, so they are revealed from zeros
+				long remaining = bmpWriter.getPictureSize() - sections * k;
+				while (remaining > 0) {
+					final int length = (int) Math.min(secretBand.length, remaining);
+					Arrays.fill(secretBand, 0, length, (byte) 0);
+					try (RunStatistics.Interval ignored = statistics.time(Phase.UNMASKING)) {
+						keystream.xor(secretBand, length);
+					}
+					try (RunStatistics.Interval ignored = statistics.time(Phase.WRITING)) {
+						out.write(secretBand, 0, length);
+					}
+					remaining -= length;
+				}
+			}
+		} finally {
+			for (DataInputStream shadowInput : shadowInputs) {
+				shadowInput.close();
+			}
 		}
 	}
 
 	/**
-	 * Gets an (x, y) point where the secret's polynomial was evaluated, for each shadow. X corresponds to the shadow
-	 * number, and Y is distributed along each section of each shadow.
+	 * Interpolates the polynomial of each section in the given range, and writes its coefficients to the section's
+	 * place in the secret. Sections only touch their own bytes, so different ranges can be decoded concurrently.
+	 * <p>
+	 * Sections are decoded in blocks of {@link #BLOCK_SECTIONS}, one phase at a time for the whole block, so that each
+	 * phase can be timed without timing every section.
 	 *
-	 * @param j The section number to get points for.  Will scan the same section of each shadow.
-	 * @return The extracted points.
+	 * @param lagrangeInterpolator The interpolator to use.
+	 * @param weights The interpolation matrix for the loaded shadows.
+	 * @param shadowData The picture data of each shadow, where section j starts at {@code 8 * j}.
+	 * @param secret Where to write the decoded secret, where section j starts at {@code j * k}.
+	 * @param from First section to decode, inclusive.
+	 * @param to Last section to decode, exclusive.
+	 */
+	private void decodeSections(LagrangeInterpolator lagrangeInterpolator, int[][] weights, byte[][] shadowData, byte[] secret, int from, int to) {
+		final int[][] hidden = new int[k][Math.min(BLOCK_SECTIONS, to - from)];
+		final int[][] ys = new int[Math.min(BLOCK_SECTIONS, to - from)][k];
+		final int[] coeffs = new int[k];
+
+		for (int blockStart = from; blockStart < to; blockStart += BLOCK_SECTIONS) {
+			final int blockEnd = Math.min(to, blockStart + BLOCK_SECTIONS);
+
+			//Step 1: Get the bytes hidden in each picture for the whole block
+			try (RunStatistics.Interval ignored = statistics.time(Phase.EXTRACTION)) {
+				getHiddenBytes(shadowData, blockStart, blockEnd, hidden, ys);
+			}
+
+			try (RunStatistics.Interval ignored = statistics.time(Phase.INTERPOLATION)) {
+				for (int j = blockStart; j < blockEnd; j++) {
+					//Step 2: Find polynomial
+					if (field == Field.GF256) {
+						lagrangeInterpolator.interpolateInGF256(weights, ys[j - blockStart], coeffs);
+					} else {
+						lagrangeInterpolator.interpolate(weights, ys[j - blockStart], 257, coeffs);
+					}
+
+					//Step 3: Build piece of secret picture
+					//When the coefficient of the largest degree of the polynomial is 0, it is written.
+					int byteCount = j * k;
+					for (int i = 0; i < k; i++) {
+						secret[byteCount++] = (byte)coeffs[i];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the interpolation matrix for the loaded shadows, in the field they were shared in
+	 * @param lagrangeInterpolator The interpolator to use.
+	 * @return the matrix to interpolate every section with
+	 */
+	private int[][] getWeights(LagrangeInterpolator lagrangeInterpolator) throws ShareException {
+		final int[] shadowNumbers = getShadowNumbers();
+		verifyShadowNumbersCanBeInterpolated(shadowNumbers);
+		return field == Field.GF256
+				? lagrangeInterpolator.weightsInGF256(shadowNumbers)
+				: lagrangeInterpolator.weights(shadowNumbers, 257);
+	}
+
+	/**
+	 * Verify that the shadow numbers are distinct non-zero elements of the field, since interpolating divides by each of
+	 * them and by the difference of every two of them
 	 */
-	private List<Point> getPoints(int j){
-		List<Point> points = new ArrayList<>();
-		for(BmpParser bmp : pictures) {
-			points.add(new Point(bmp.getShadowNumber(), getHiddenByte(bmp, j)));
+	private void verifyShadowNumbersCanBeInterpolated(int[] shadowNumbers) throws ShareException {
+		for (int i = 0; i < shadowNumbers.length; i++) {
+			final int element = field.toElement(shadowNumbers[i]);
+			if (element <= 0) {
+				throw new ShareException("Shadow number " + shadowNumbers[i] + " is not a non-zero element of " + field + ".");
+			}
+			for (int j = 0; j < i; j++) {
+				if (field.toElement(shadowNumbers[j]) == element) {
+					throw new ShareException("Shadow numbers " + shadowNumbers[j] + " and " + shadowNumbers[i] + " are the same in " + field
+							+ ", so they can't be used together.");
+				}
+			}
 		}
-		return points;
 	}
 
 	/**
-	 * Cycles through 8 bytes of a specified section of a shadow picture and extracts the least significant bit of each
-	 * byte, concatenating them together to obtain a new full byte.
+	 * Gets the X coordinate of the points stored in each shadow, which is the shadow number. These are the same for
+	 * every section.
 	 *
-	 * @param bmp The shadow to traverse.
-	 * @param j The section of the shadow to traverse. Each section is 8 bytes long.
-	 * @return The obtained byte, as an int.
+	 * @return The shadow numbers, in the same order as {@link #pictures}.
 	 */
-	private int getHiddenByte(BmpParser bmp, int j) {
-		byte[] picData = bmp.getPictureData();
-		StringBuilder byteStr = new StringBuilder();
-		for(int i = 0; i < 8; i++) {
-			byteStr.append(picData[8 * j + i] & 1);
+	private int[] getShadowNumbers() {
+		int[] xs = new int[pictures.size()];
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = pictures.get(i).getShadowNumber();
 		}
-		return Integer.parseInt(byteStr.toString(), 2);
+		return xs;
 	}
 
 	/**
-	 * XORs each byte of the secret picture with a "random" byte from a SEEDED random generator. If the random's seed
-	 * is the same used to hide the picture, the XORs applied here will be the same as the ones used to hide the picture,
-	 * and thus the secret will be "revealed".
+	 * Gets the Y coordinate of the point where the secret's polynomial was evaluated, for each shadow. Y is distributed
+	 * along each section of each shadow, so the Y coordinates of a range of sections are extracted from each shadow at
+	 * once with {@link LsbCodec#extract(byte[], int, int[], int, int)}, and then grouped by section.
 	 *
-	 * @param seed The seed to use for the random number generator. Should be the same seed used to hide the picture.
+	 * @param shadowData The picture data of each shadow.
+	 * @param from First section to get points for, inclusive. Will scan the same sections of each shadow.
+	 * @param to Last section to get points for, exclusive.
+	 * @param hidden Scratch space, a row of at least {@code to - from} values per shadow.
+	 * @param ys Where to store the extracted values, {@code ys[j - from]} for section j, in the same order as
+	 * {@code shadowData}.
 	 */
-	private void revealSecret(final int seed) {
-		Random rnd = new Random(seed);
-		for(int i = 0; i < secretPicture.length; i++) {
-			secretPicture[i] = (byte) ((secretPicture[i] & 0xff) ^ rnd.nextInt(256));
+	private void getHiddenBytes(byte[][] shadowData, int from, int to, int[][] hidden, int[][] ys) {
+		for (int i = 0; i < hidden.length; i++) {
+			LsbCodec.extract(shadowData[i], 8 * from, hidden[i], 0, to - from);
+		}
+		for (int t = 0; t < to - from; t++) {
+			final int[] sectionYs = ys[t];
+			for (int i = 0; i < sectionYs.length; i++) {
+				sectionYs[i] = hidden[i][t];
+			}
 		}
 	}
 
+	/**
+	 * @return Whether the secret is written to standard output instead of to a file.
+	 */
+	private boolean writesToStandardOutput() {
+		return STANDARD_OUTPUT.equals(secretFilePath);
+	}
+
+	/**
+	 * Builds writer for the region of the secret picture, whose picture data is streamed to it
+	 * @return Bmp Writer
+	 */
+	private BmpWriter getRegionWriter() {
+		return new BmpWriter.BmpWriterBuilder()
+				.file(secretFilePath != null ? new File(secretFilePath) : null)
+				.width(region.getWidth())
+				.height(region.getHeight())
+				.pictureSize((long) region.getWidth() * region.getHeight())
+				.build();
+	}
+
 	/**
 	 * Builds writer for secret picture
-	 * @param height
-	 * @param width
 	 * @return Bmp Writer
 	 */
-	private BmpWriter getBmpWriter(int height, int width){
+	private BmpWriter getBmpWriter(){
 		return new BmpWriter.BmpWriterBuilder()
-				.file(new File(secretFilePath))
-				.width(width)
-				.height(height)
+				.file(secretFilePath != null ? new File(secretFilePath) : null)
+				.width(getSecretWidth())
+				.height(getSecretHeight())
+				.pictureSize(getSecretPictureSize())
 				.pictureData(secretPicture)
 				.build();
 	}
@@ -0,0 +1,94 @@
+package ar.edu.itba.criptog2.recover;
+
+import ar.edu.itba.criptog2.ShareException;
+
+/**
+ * A rectangle of the secret picture, in pixels, with its origin at the top left corner like image viewers show it.
+ */
+public final class Region {
+
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+
+	public Region(int x, int y, int width, int height) {
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Parses a region given in the command line as X,Y,WIDTH,HEIGHT
+	 * @param region the region as given
+	 * @return the region
+	 * @throws ShareException if the region is not given in that format
+	 */
+	public static Region parse(String region) throws ShareException {
+		final int[] values = parseNumbers(region, 4, "Region should be given as X,Y,WIDTH,HEIGHT.");
+		return new Region(values[0], values[1], values[2], values[3]);
+	}
+
+	/**
+	 * Parses a range of rows given in the command line as Y,HEIGHT, which spans the whole width of the picture
+	 * @param rows the rows as given
+	 * @param pictureWidth the width of the picture
+	 * @return the region covering those rows
+	 * @throws ShareException if the rows are not given in that format
+	 */
+	public static Region parseRows(String rows, int pictureWidth) throws ShareException {
+		final int[] values = parseNumbers(rows, 2, "Rows should be given as Y,HEIGHT.");
+		return new Region(0, values[0], pictureWidth, values[1]);
+	}
+
+	private static int[] parseNumbers(String value, int count, String message) throws ShareException {
+		final String[] parts = value.split(",", -1);
+		if (parts.length != count) {
+			throw new ShareException(message);
+		}
+		final int[] numbers = new int[count];
+		for (int i = 0; i < count; i++) {
+			try {
+				numbers[i] = Integer.parseInt(parts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new ShareException(message);
+			}
+		}
+		return numbers;
+	}
+
+	/**
+	 * Verify that the region is not empty and lies within a picture of the given dimensions
+	 * @throws ShareException if it does not
+	 */
+	public void verifyWithin(int pictureWidth, int pictureHeight) throws ShareException {
+		if (width < 1 || height < 1) {
+			throw new ShareException("Region should be at least 1x1 pixels.");
+		}
+		if (x < 0 || y < 0 || (long) x + width > pictureWidth || (long) y + height > pictureHeight) {
+			throw new ShareException("Region " + this + " is not within the secret, which is " + pictureWidth + "x" + pictureHeight + ".");
+		}
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public String toString() {
+		return width + "x" + height + " at (" + x + ", " + y + ")";
+	}
+}
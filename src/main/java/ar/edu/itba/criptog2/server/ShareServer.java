@@ -0,0 +1,309 @@
+package ar.edu.itba.criptog2.server;
+
+import ar.edu.itba.criptog2.ShareException;
+import ar.edu.itba.criptog2.Worker;
+import ar.edu.itba.criptog2.distribute.Distributor;
+import ar.edu.itba.criptog2.recover.Recoverer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.sourceforge.argparse4j.inf.Namespace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves distribute and recover jobs over HTTP on the loopback interface, so that they run on an already warmed up JVM
+ * instead of starting one per job.
+ * <p>
+ * Jobs take the same options as the command line, as query parameters:
+ * <ul>
+ *     <li>{@code POST /distribute?secret=FILE&dir=DIRECTORY&k=NUMBER[&n=NUMBER&band=ROWS&inplace=true&gf256=true]}</li>
+ *     <li>{@code POST /recover?dir=DIRECTORY&k=NUMBER[&secret=FILE&band=ROWS&region=X,Y,WIDTH,HEIGHT|rows=Y,HEIGHT]}. Without a secret, or with -
+ *     as the secret, the recovered BMP is returned in the response instead of being written to a file.</li>
+ * </ul>
+ * Jobs run on a fixed pool of workers. Once the queue of waiting jobs is full, new jobs are rejected with 503 instead of
+ * piling up. Invalid jobs are answered with 400 and the same message the command line would print. If the server was
+ * started with -metrics, every job exports its metrics to that file.
+ * <p>
+ * Jobs can rewrite any BMP the server can, so requests sent by web pages, which carry an Origin header or a Host that
+ * is not the loopback interface, are answered with 403. Jobs on a directory or secret that another job is already
+ * using are answered with 409.
+ */
+public class ShareServer implements Worker {
+
+	private int port;
+	private int workers;
+	private int queueSize;
+	private int threads;
+	private String metricsFile;
+
+	/**
+	 * Canonical paths of the directories and secrets of the jobs that are waiting or running.
+	 */
+	private final Set<String> pathsInUse = new HashSet<>();
+
+	private ShareServer() {}
+
+	/**
+	 * Creates a server for the options given in the command line
+	 * @param ns
+	 * @return the server
+	 * @throws ShareException if the options are not valid
+	 */
+	public static ShareServer createFromNamespace(final Namespace ns) throws ShareException {
+		final ShareServer server = new ShareServer();
+		server.port = ns.getInt("serve");
+		if (server.port < 0 || server.port > 65535) {
+			throw new ShareException("Port should be between 0 and 65535.");
+		}
+		server.workers = Optional.ofNullable(ns.getInt("jobs")).orElse(1);
+		if (server.workers < 1) {
+			throw new ShareException("Number of jobs should be greater than or equal to 1.");
+		}
+		server.queueSize = Optional.ofNullable(ns.getInt("queue")).orElse(16);
+		if (server.queueSize < 1) {
+			throw new ShareException("Queue size should be greater than or equal to 1.");
+		}
+		server.threads = ns.getInt("threads");
+		if (server.threads < 1) {
+			throw new ShareException("Number of threads should be greater than or equal to 1.");
+		}
+		server.metricsFile = ns.getString("metrics");
+		return server;
+	}
+
+	/**
+	 * Starts serving. Returns once the server is listening; it keeps running until the process is stopped.
+	 */
+	@Override
+	public void work() throws ShareException {
+		final ThreadPoolExecutor jobs = new ThreadPoolExecutor(this.workers, this.workers, 0, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(this.queueSize), runnable -> new Thread(runnable, "job"));
+
+		final HttpServer server;
+		try {
+			server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), 0);
+		} catch (IOException e) {
+			throw new ShareException("Error listening on port " + this.port + ": " + e.getMessage(), e);
+		}
+		// Handlers only parse the request and queue the job, the response is sent by the worker that runs it
+		server.createContext("/distribute", exchange -> submit(jobs, exchange, true));
+		server.createContext("/recover", exchange -> submit(jobs, exchange, false));
+		server.start();
+
+		System.out.println("Listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+	}
+
+	private void submit(ThreadPoolExecutor jobs, HttpExchange exchange, boolean distribute) throws IOException {
+		if (!isFromLocalClient(exchange)) {
+			respond(exchange, 403, "Only local clients outside of a browser can submit jobs.");
+			return;
+		}
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Allow", "POST");
+			respond(exchange, 405, "Only POST is allowed.");
+			return;
+		}
+		final Namespace ns;
+		final List<String> paths;
+		try {
+			ns = parseQuery(exchange.getRequestURI().getRawQuery());
+			paths = getPaths(ns);
+		} catch (IllegalArgumentException e) {
+			respond(exchange, 400, e.getMessage());
+			return;
+		}
+		if (!claim(paths)) {
+			respond(exchange, 409, "Another job is using " + ns.getString("dir") + " or its secret, try again once it is done.");
+			return;
+		}
+		try {
+			jobs.execute(() -> run(exchange, ns, distribute, paths));
+		} catch (RejectedExecutionException e) {
+			release(paths);
+			respond(exchange, 503, "Too many jobs waiting, try again later.");
+		}
+	}
+
+	/**
+	 * Web pages can make the user's browser send requests to the loopback interface, either straight to it or through a
+	 * name of theirs that resolves to it. Browsers always set Origin on such cross-origin POSTs and Host to the name
+	 * the page used, so only requests without an Origin and with a loopback Host are accepted.
+	 */
+	private static boolean isFromLocalClient(HttpExchange exchange) {
+		if (exchange.getRequestHeaders().containsKey("Origin")) {
+			return false;
+		}
+		final String host = exchange.getRequestHeaders().getFirst("Host");
+		if (host == null) {
+			return false;
+		}
+		// Strip the port, keeping IPv6 addresses in brackets whole
+		final int portSeparator = host.lastIndexOf(':');
+		final String name = portSeparator > host.lastIndexOf(']') ? host.substring(0, portSeparator) : host;
+		return name.equalsIgnoreCase("localhost") || name.equals("[::1]") || name.matches("127\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}");
+	}
+
+	/**
+	 * @return The canonical paths a job writes to or reads from: its directory and its secret file, if any.
+	 * @throws IllegalArgumentException if a path can't be resolved
+	 */
+	private static List<String> getPaths(Namespace ns) {
+		final List<String> paths = new ArrayList<>();
+		try {
+			paths.add(new File(ns.getString("dir")).getCanonicalPath());
+			final String secret = ns.getString("secret");
+			if (secret != null && !Recoverer.STANDARD_OUTPUT.equals(secret)) {
+				paths.add(new File(secret).getCanonicalPath());
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid path: " + e.getMessage());
+		}
+		return paths;
+	}
+
+	/**
+	 * Claims the given paths for a job, unless another job holds any of them. Jobs on the same directory would write
+	 * the same temporary files next to its shadows, and replace them under each other.
+	 * @return whether the paths were claimed
+	 */
+	private boolean claim(List<String> paths) {
+		synchronized (this.pathsInUse) {
+			for (String path : paths) {
+				if (this.pathsInUse.contains(path)) {
+					return false;
+				}
+			}
+			this.pathsInUse.addAll(paths);
+			return true;
+		}
+	}
+
+	private void release(List<String> paths) {
+		synchronized (this.pathsInUse) {
+			this.pathsInUse.removeAll(paths);
+		}
+	}
+
+	private void run(HttpExchange exchange, Namespace ns, boolean distribute, List<String> paths) {
+		try {
+			run(exchange, ns, distribute);
+		} finally {
+			release(paths);
+		}
+	}
+
+	private void run(HttpExchange exchange, Namespace ns, boolean distribute) {
+		try {
+			if (distribute) {
+				Distributor.createFromNamespace(ns).work();
+				respond(exchange, 200, "Distributed " + ns.getString("secret"));
+			} else if (ns.getString("secret") != null && !Recoverer.STANDARD_OUTPUT.equals(ns.getString("secret"))) {
+				Recoverer.createFromNamespace(ns).work();
+				respond(exchange, 200, "Wrote ouput to: " + ns.getString("secret"));
+			} else {
+				final byte[] secret = Recoverer.createFromNamespace(ns).workInMemory();
+				exchange.getResponseHeaders().set("Content-Type", "image/bmp");
+				respond(exchange, 200, secret);
+			}
+		} catch (ShareException e) {
+			respond(exchange, 400, e.getMessage());
+		} catch (RuntimeException e) {
+			respond(exchange, 500, "Error running job: " + e);
+		}
+	}
+
+	/**
+	 * Turns the query parameters of a job into the options the command line would produce for it
+	 * @param query the raw query of the request
+	 * @return the job's options
+	 * @throws IllegalArgumentException if a parameter is missing or not valid
+	 */
+	private Namespace parseQuery(String query) {
+		final Map<String, String> parameters = new HashMap<>();
+		if (query != null) {
+			for (String parameter : query.split("&")) {
+				if (parameter.isEmpty()) {
+					continue;
+				}
+				final int separator = parameter.indexOf('=');
+				final String name = separator >= 0 ? parameter.substring(0, separator) : parameter;
+				final String value = separator >= 0 ? parameter.substring(separator + 1) : "";
+				parameters.put(decode(name), decode(value));
+			}
+		}
+
+		final Map<String, Object> attributes = new HashMap<>();
+		attributes.put("secret", parameters.get("secret"));
+		attributes.put("dir", Optional.ofNullable(parameters.get("dir")).orElseThrow(() -> new IllegalArgumentException("dir is required.")));
+		attributes.put("k", parseInt(parameters, "k", true));
+		attributes.put("n", parseInt(parameters, "n", false));
+		attributes.put("band", parseInt(parameters, "band", false));
+		attributes.put("inplace", Boolean.parseBoolean(parameters.get("inplace")));
+		attributes.put("gf256", Boolean.parseBoolean(parameters.get("gf256")));
+		attributes.put("region", parameters.get("region"));
+		attributes.put("rows", parameters.get("rows"));
+		if (parameters.get("region") != null && parameters.get("rows") != null) {
+			throw new IllegalArgumentException("Only one of region or rows can be used.");
+		}
+		attributes.put("threads", this.threads);
+		attributes.put("metrics", this.metricsFile);
+		return new Namespace(attributes);
+	}
+
+	private static Integer parseInt(Map<String, String> parameters, String name, boolean required) {
+		final String value = parameters.get(name);
+		if (value == null) {
+			if (required) {
+				throw new IllegalArgumentException(name + " is required.");
+			}
+			return null;
+		}
+		try {
+			return Integer.valueOf(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(name + " should be a number.");
+		}
+	}
+
+	private static String decode(String value) {
+		try {
+			return URLDecoder.decode(value, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String message) {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		respond(exchange, status, (message + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void respond(HttpExchange exchange, int status, byte[] body) {
+		try (OutputStream out = exchange.getResponseBody()) {
+			exchange.sendResponseHeaders(status, body.length);
+			out.write(body);
+		} catch (IOException ignored) {
+			// The client went away, nothing left to do
+		} finally {
+			exchange.close();
+		}
+	}
+}
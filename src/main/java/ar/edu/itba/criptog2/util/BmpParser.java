@@ -1,10 +1,17 @@
 package ar.edu.itba.criptog2.util;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**
@@ -12,30 +19,53 @@ import java.util.Arrays;
  */
 public class BmpParser {
 
+    /**
+     * Length of the fixed part of the header, i.e. the file header plus a BITMAPINFOHEADER.
+     */
+    private static final int FIXED_HEADER_LENGTH = 54;
+
+    /**
+     * Largest picture data that can be loaded whole, i.e. the largest array the JVM can allocate. Larger pictures
+     * must be streamed or read in ranges.
+     */
+    public static final int MAX_LOADABLE_PICTURE_SIZE = Integer.MAX_VALUE - 8;
+
     private final File file;
-    private byte[] fileData;
+    private final String name;
+    /**
+     * Contents of the whole BMP, for parsers of in-memory images. Null for parsers of files.
+     */
+    private final byte[] source;
     private String id;
-    private int fileSize;
+    private long fileSize;
     byte[] reservedBytes;
+    private int seed;
+    private int shadowNumber;
+    private Field field;
     int pictureOffset;
     private int infoHeaderLength;
     private int width, height;
     private int numPlanes;
     private int bitsPerPixel;
     private int compressionType;
-    private int pictureSize;
+    private long pictureSize;
     private int horizontalResolution;
     private int verticalResolution;
     private int numUsedColors;
     private int numImportantColors;
-    private byte[] pictureData;
-    private byte[] extraHeaderBytes;
+    private volatile byte[] pictureData;
 
     public BmpParser(String bitmapImagePath) throws IOException {
+        this(bitmapImagePath, true);
+    }
+
+    private BmpParser(String bitmapImagePath, boolean loadPictureData) throws IOException {
         if(bitmapImagePath == null || bitmapImagePath.isEmpty()) {
             throw new IllegalArgumentException("Invalid bitmap image path provided");
         }
         file = new File(bitmapImagePath);
+        name = file.getName();
+        source = null;
         if (!file.exists()) {
             throw new IllegalArgumentException(bitmapImagePath + " does not exist");
         }
@@ -45,42 +75,102 @@ public class BmpParser {
         if (!file.canRead()) {
             throw new IllegalArgumentException(bitmapImagePath + " is not readable");
         }
-        parse();
+        parseHeader();
+        if (loadPictureData) {
+            loadPictureData();
+        }
+    }
+
+    private BmpParser(byte[] bitmapImage, String name) {
+        if (bitmapImage == null) {
+            throw new IllegalArgumentException("Invalid bitmap image provided");
+        }
+        if (bitmapImage.length < FIXED_HEADER_LENGTH) {
+            throw new IllegalArgumentException(name + " is shorter than a BMP header");
+        }
+        this.file = null;
+        this.name = name;
+        this.source = bitmapImage;
+        decodeHeader(bitmapImage);
+        if (!canLoadPictureData()) {
+            throw new IllegalArgumentException(name + " claims to have " + pictureSize + " bytes of picture data");
+        }
+        // Copy the picture data, padding it with zeros if the image is shorter than its header claims
+        final byte[] data = new byte[(int) pictureSize];
+        final int available = (int) Math.max(0, Math.min(pictureSize, (long) bitmapImage.length - pictureOffset));
+        System.arraycopy(bitmapImage, pictureOffset, data, 0, available);
+        pictureData = data;
+    }
+
+    /**
+     * Parses a BMP held in memory. Its picture data is copied, so changes to it don't affect the given array.
+     *
+     * @param bitmapImage Contents of the whole BMP file.
+     * @param name Name of the image, for error messages.
+     * @return The parser.
+     */
+    public static BmpParser fromBytes(byte[] bitmapImage, String name) {
+        return new BmpParser(bitmapImage, name);
+    }
+
+    /**
+     * Parses only the fixed 54-byte header of the given BMP, which is enough to validate it and to read its dimensions
+     * and reserved bytes. Picture data is read lazily, on the first call to {@link #getPictureData()} or
+     * {@link #loadPictureData()}, or can be streamed with {@link #openPictureData()} instead.
+     *
+     * @param bitmapImagePath Path of the BMP to parse.
+     * @return The parser.
+     * @throws IOException If an I/O error occurs reading the header, or if the file is shorter than its header.
+     */
+    public static BmpParser readHeader(String bitmapImagePath) throws IOException {
+        return new BmpParser(bitmapImagePath, false);
     }
 
     /**
-     * Parses the BMP this parser was initialized with, reading all header data and image data.
+     * Reads and parses the fixed header of the BMP this parser was initialized with. Every field is decoded once,
+     * straight from the header bytes.
      *
-     * @throws IOException If an I/O error occurs reading any of the file.
-     * @see <a href="https://stackoverflow.com/a/10497780/2333689">Source for converting File to byte[]</a>
-     */
-    private void parse() throws IOException {
-        fileData = Files.readAllBytes(file.toPath());
-//        ByteArrayInputStream stream = new ByteArrayInputStream(fileData);
-//        ArrayList<Byte> buffer = new ArrayList<>();
-        id = new String(Arrays.copyOfRange(fileData, 0, 2));
-        fileSize = bytesToInt(Arrays.copyOfRange(fileData, 2, 6));
-        reservedBytes = Arrays.copyOfRange(fileData, 6, 10);
-        pictureOffset = bytesToInt(Arrays.copyOfRange(fileData, 10, 14));
-        infoHeaderLength = bytesToInt(Arrays.copyOfRange(fileData, 14, 18));
-        width = bytesToInt(Arrays.copyOfRange(fileData, 18, 22));
-        height = bytesToInt(Arrays.copyOfRange(fileData, 22, 26));
-        numPlanes = bytesToInt(Arrays.copyOfRange(fileData, 26, 28));
-
-        bitsPerPixel = bytesToInt(Arrays.copyOfRange(fileData, 28, 30));
+     * @throws IOException If an I/O error occurs reading the header, or if the file is shorter than its header.
+     */
+    private void parseHeader() throws IOException {
+        byte[] header = new byte[FIXED_HEADER_LENGTH];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+        }
+        decodeHeader(header);
+    }
+
+    /**
+     * Decodes every header field from the given bytes, which must hold at least the fixed header.
+     */
+    private void decodeHeader(byte[] header) {
+        id = new String(header, 0, 2);
+        fileSize = readInt(header, 2, 4) & 0xFFFFFFFFL;
+        reservedBytes = Arrays.copyOfRange(header, 6, 10);
+        seed = readInt(header, 6, 2);
+        final int storedShadowNumber = readInt(header, 8, 2);
+        shadowNumber = storedShadowNumber & Field.SHADOW_NUMBER_MASK;
+        field = Field.decode(storedShadowNumber);
+        pictureOffset = readInt(header, 10, 4);
+        infoHeaderLength = readInt(header, 14, 4);
+        width = readInt(header, 18, 4);
+        height = readInt(header, 22, 4);
+        numPlanes = readInt(header, 26, 2);
+
+        bitsPerPixel = readInt(header, 28, 2);
         if(bitsPerPixel != 8) {
             throw new IllegalArgumentException("Provided BMP does not use 8 bits per pixel. Only 8 bits per pixel is supported.");
         }
 
-        compressionType = bytesToInt(Arrays.copyOfRange(fileData, 30, 34));
+        compressionType = readInt(header, 30, 4);
 
-        pictureSize = bytesToInt(Arrays.copyOfRange(fileData, 34, 38));
+        pictureSize = readInt(header, 34, 4) & 0xFFFFFFFFL;
         //Picture size can be 0 if compression is 0. In this case, picture size = width * height * (bits per pixel / 8)
         if(pictureSize == 0) {
             if(compressionType != 0) {
                 throw new IllegalStateException("Provided BMP file doesn't specify picture length and is not uncompressed");
             } else {
-                pictureSize = width * height * (bitsPerPixel/8);
+                pictureSize = (long) width * height * (bitsPerPixel/8);
             }
         }
         // We don't support BMPs that have data after the picture data ends
@@ -88,19 +178,142 @@ public class BmpParser {
             throw new IllegalArgumentException("Provided BMP has trailing data after picture data, this is not supported");
         }
 
-        horizontalResolution = bytesToInt(Arrays.copyOfRange(fileData, 38, 42));
-        verticalResolution = bytesToInt(Arrays.copyOfRange(fileData, 42, 46));
-        numUsedColors = bytesToInt(Arrays.copyOfRange(fileData, 46, 50));
-        numImportantColors = bytesToInt(Arrays.copyOfRange(fileData, 50, 54));
-        extraHeaderBytes = Arrays.copyOfRange(fileData, 54, pictureOffset);
-        pictureData = Arrays.copyOfRange(fileData, pictureOffset, pictureOffset + pictureSize);
+        horizontalResolution = readInt(header, 38, 4);
+        verticalResolution = readInt(header, 42, 4);
+        numUsedColors = readInt(header, 46, 4);
+        numImportantColors = readInt(header, 50, 4);
+    }
+
+    /**
+     * Reads this BMP's picture data into memory, if it wasn't already. Safe to call from several threads; the data is
+     * only read once.
+     *
+     * @throws IllegalStateException If the picture data is too large to be loaded, see {@link #canLoadPictureData()}.
+     * @throws IOException If an I/O error occurs reading the picture data.
+     */
+    public void loadPictureData() throws IOException {
+        if (pictureData != null) {
+            return;
+        }
+        synchronized (this) {
+            if (pictureData == null) {
+                if (!canLoadPictureData()) {
+                    throw new IllegalStateException(name + " has " + pictureSize
+                            + " bytes of picture data, which is too large to be loaded whole");
+                }
+                pictureData = readPictureData(0, (int) pictureSize);
+            }
+        }
+    }
+
+    /**
+     * @return Whether this BMP's picture data is small enough to be {@link #loadPictureData() loaded} whole.
+     */
+    public boolean canLoadPictureData() {
+        return pictureSize <= MAX_LOADABLE_PICTURE_SIZE;
+    }
+
+    /**
+     * Reads a range of this BMP's picture data with positional reads, without reading anything before or after it.
+     * Like with {@link #openPictureData()}, bytes past the end of the file read as zeros. If the picture data was
+     * already loaded, it is copied from memory instead.
+     *
+     * @param offset Position within the picture data of the first byte to read.
+     * @param length How many bytes to read.
+     * @return The read bytes.
+     * @throws IllegalArgumentException If the range is not within the picture data.
+     * @throws IOException If an I/O error occurs reading the file.
+     */
+    public byte[] readPictureData(long offset, int length) throws IOException {
+        final byte[] data = new byte[length];
+        try (FileChannel channel = openPictureDataChannel()) {
+            readPictureData(channel, offset, data, 0, length);
+        }
+        return data;
+    }
+
+    /**
+     * Opens a channel many ranges of this BMP's picture data can be read from with
+     * {@link #readPictureData(FileChannel, long, byte[], int, int)}, without opening the file for each of them. The
+     * caller is responsible for closing the channel.
+     *
+     * @return The opened channel, or null if the picture data is already loaded, as it is then copied from memory.
+     * @throws IOException If an I/O error occurs opening the file.
+     */
+    public FileChannel openPictureDataChannel() throws IOException {
+        return pictureData != null ? null : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Same as {@link #readPictureData(long, int)}, reading through a channel opened with
+     * {@link #openPictureDataChannel()} straight into the given array.
+     *
+     * @param channel The channel to read from, or null if the picture data is loaded.
+     * @param offset Position within the picture data of the first byte to read.
+     * @param dst The array to read into.
+     * @param dstOffset Position in {@code dst} of the first byte read.
+     * @param length How many bytes to read.
+     * @throws IllegalArgumentException If the range is not within the picture data.
+     * @throws IOException If an I/O error occurs reading the file.
+     */
+    public void readPictureData(FileChannel channel, long offset, byte[] dst, int dstOffset, int length)
+            throws IOException {
+        if (offset < 0 || length < 0 || offset + length > pictureSize) {
+            throw new IllegalArgumentException("Requested " + length + " bytes at " + offset + " but " + name
+                    + " only has " + pictureSize + " bytes of picture data");
+        }
+        final byte[] loaded = pictureData;
+        if (loaded != null) {
+            System.arraycopy(loaded, (int) offset, dst, dstOffset, length);
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(dst, dstOffset, length);
+        long position = pictureOffset + offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                // Bytes past the end of the file read as zeros
+                Arrays.fill(dst, buffer.position(), dstOffset + length, (byte) 0);
+                break;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Opens a stream over this BMP's picture data, which yields exactly {@link #getPictureSize()} bytes: the same
+     * bytes {@link #getPictureData()} would hold, including zero padding if the file is shorter than its header
+     * claims. The caller is responsible for closing the stream.
+     *
+     * @return The opened stream.
+     * @throws IOException If an I/O error occurs opening the file or skipping its header.
+     */
+    public InputStream openPictureData() throws IOException {
+        if (file == null) {
+            return new PictureDataInputStream(new ByteArrayInputStream(pictureData), pictureSize);
+        }
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            long toSkip = pictureOffset;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    break;
+                }
+                toSkip -= skipped;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new PictureDataInputStream(in, pictureSize);
     }
 
     public String getId() {
         return id;
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
@@ -136,7 +349,7 @@ public class BmpParser {
         return compressionType;
     }
 
-    public int getPictureSize() {
+    public long getPictureSize() {
         return pictureSize;
     }
 
@@ -152,7 +365,24 @@ public class BmpParser {
         return verticalResolution;
     }
 
+    /**
+     * @return This BMP's picture data, reading it first if this parser was created with {@link #readHeader(String)}
+     * and it wasn't loaded yet.
+     * @throws UncheckedIOException If an I/O error occurs reading the picture data.
+     */
     public byte[] getPictureData() {
+        try {
+            loadPictureData();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return pictureData;
+    }
+
+    /**
+     * @return This BMP's picture data if it was already read, or null otherwise. Never reads the file.
+     */
+    byte[] getLoadedPictureData() {
         return pictureData;
     }
 
@@ -164,46 +394,129 @@ public class BmpParser {
         return numImportantColors;
     }
 
+    /**
+     * @return Every byte before the picture data.
+     * @throws UncheckedIOException If an I/O error occurs reading the header.
+     */
     public byte[] getHeader() {
-        return Arrays.copyOfRange(fileData, 0, pictureOffset);
+        if (file == null) {
+            return Arrays.copyOf(source, pictureOffset);
+        }
+        byte[] header = new byte[pictureOffset];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return header;
     }
 
+    /**
+     * @return The absolute path of the file this parser was initialized with, or null for in-memory images.
+     */
     public String getAbsolutePath() {
-        return file.getAbsolutePath();
+        return file != null ? file.getAbsolutePath() : null;
+    }
+
+    /**
+     * @return The name of the file this parser was initialized with, or the name given to the in-memory image.
+     */
+    public String getName() {
+        return name;
     }
 
     @Override
     public String toString() {
-        return "BmpParser, parsed " + width + "x" + height + " bitmap image from " + file.getPath();
+        return "BmpParser, parsed " + width + "x" + height + " bitmap image from " + (file != null ? file.getPath() : name);
     }
 
     /**
-     * Convert a byte array to int.
+     * Decodes a little-endian unsigned integer from {@code data}, without copying it.
      *
-     * @param bytes The bytes to convert to int.  {@code bytes.length} must be between 1 and 4.
-     * @return The converted int.
-     * @see <a href="https://stackoverflow.com/a/2383729/2333689">Source</a>
+     * @param data The bytes to decode from.
+     * @param offset Index of the least significant byte.
+     * @param length Number of bytes to decode, between 1 and 4.
+     * @return The decoded int.
      */
-    private int bytesToInt(byte[] bytes) {
-        if (bytes.length > 4) {
-            throw new IllegalArgumentException("Can only convert up to 4 bytes to int");
-        } else if (bytes.length < 1) {
-            throw new IllegalArgumentException("Need at least 1 byte to convert");
+    private static int readInt(byte[] data, int offset, int length) {
+        int value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
         }
-        byte[] parsedBytes = new byte[4];
-        for (int i = 0; i < bytes.length; i++) {
-            parsedBytes[i] = bytes[i];
-        }
-        ByteBuffer bb = ByteBuffer.wrap(parsedBytes);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        return bb.getInt();
+        return value;
     }
 
     public int getShadowNumber(){
-        return bytesToInt(Arrays.copyOfRange(reservedBytes,2,4));
+        return shadowNumber;
+    }
+
+    /**
+     * @return The field the secret was shared in, if this is a shadow.
+     */
+    public Field getField() {
+        return field;
     }
 
     public int getSeed(){
-        return bytesToInt(Arrays.copyOfRange(reservedBytes,0,2));
+        return seed;
+    }
+
+    /**
+     * Stream of exactly a given number of bytes, padded with zeros if the underlying stream ends early.
+     */
+    private static class PictureDataInputStream extends FilterInputStream {
+        private long remaining;
+        private boolean exhausted;
+
+        PictureDataInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            len = (int) Math.min(len, remaining);
+            int read = exhausted ? -1 : in.read(b, off, len);
+            if (read == -1) {
+                exhausted = true;
+                Arrays.fill(b, off, off + len, (byte) 0);
+                read = len;
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[8192];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 }
@@ -0,0 +1,101 @@
+package ar.edu.itba.criptog2.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Modifies a BMP in place with positional writes, instead of rewriting the whole file like {@link BmpWriter} does.
+ * Only the written ranges change; the rest of the header, the palette and the picture data are left untouched.
+ * <p>
+ * Unlike {@link BmpWriter#writeImage()}, changes are not atomic: if an error occurs midway, the file is left partially
+ * modified.
+ */
+public class BmpPatcher implements Closeable {
+
+    private static final int RESERVED_BYTES_OFFSET = 6;
+    private static final int RESOLUTION_OFFSET = 38;
+
+    private final FileChannel channel;
+    private final int pictureOffset;
+
+    /**
+     * Opens the file of the given BMP for patching.
+     *
+     * @param parser The parsed BMP. Only its header needs to have been read.
+     * @throws IOException If an I/O error occurs opening the file.
+     */
+    public BmpPatcher(BmpParser parser) throws IOException {
+        this.channel = FileChannel.open(Paths.get(parser.getAbsolutePath()), StandardOpenOption.WRITE);
+        this.pictureOffset = parser.getPictureOffset();
+    }
+
+    /**
+     * Overwrites the reserved bytes of the header with the given seed and shadow number, like
+     * {@link BmpWriter.BmpWriterBuilder#seed(int)} and {@link BmpWriter.BmpWriterBuilder#shadowNumber(int)} do.
+     */
+    public void patchReservedBytes(int seed, int shadowNumber) throws IOException {
+        final ByteBuffer reservedBytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) seed)
+                .putShort((short) shadowNumber);
+        reservedBytes.flip();
+        write(RESERVED_BYTES_OFFSET, reservedBytes);
+    }
+
+    /**
+     * Overwrites the reserved bytes of the header with the given seed, shadow number and field, like
+     * {@link BmpWriter.BmpWriterBuilder#shadowNumber(int, Field)} does.
+     */
+    public void patchReservedBytes(int seed, int shadowNumber, Field field) throws IOException {
+        patchReservedBytes(seed, field.encodeShadowNumber(shadowNumber));
+    }
+
+    /**
+     * Overwrites the resolution fields of the header with the given secret dimensions, like
+     * {@link BmpWriter.BmpWriterBuilder#secretWidth(int)} and {@link BmpWriter.BmpWriterBuilder#secretHeight(int)} do.
+     */
+    public void patchSecretDimensions(int secretWidth, int secretHeight) throws IOException {
+        final ByteBuffer resolution = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(secretWidth)
+                .putInt(secretHeight);
+        resolution.flip();
+        write(RESOLUTION_OFFSET, resolution);
+    }
+
+    /**
+     * Overwrites a range of the picture data.
+     *
+     * @param offset Position within the picture data of the first byte to write.
+     * @param data The bytes to write.
+     * @param length How many bytes of {@code data} to write.
+     * @throws IOException If an I/O error occurs writing.
+     */
+    public void patchPictureData(long offset, byte[] data, int length) throws IOException {
+        write(pictureOffset + offset, ByteBuffer.wrap(data, 0, length));
+    }
+
+    private void write(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Forces every change to storage and closes the file. Does nothing if it was already closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
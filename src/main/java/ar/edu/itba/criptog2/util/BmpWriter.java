@@ -1,10 +1,19 @@
 package ar.edu.itba.criptog2.util;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**
@@ -12,9 +21,14 @@ import java.util.Arrays;
  */
 public class BmpWriter {
 
+    /**
+     * Largest file size the header can hold.
+     */
+    private static final long MAX_FILE_SIZE = 0xFFFFFFFFL;
+
     private File file;
     private String id;
-    private int fileSize;
+    private long fileSize;
     byte[] reservedBytes;
     int pictureOffset;
     private int infoHeaderLength;
@@ -22,7 +36,7 @@ public class BmpWriter {
     private int numPlanes;
     private int bitsPerPixel;
     private int compressionType;
-    private int pictureSize;
+    private long pictureSize;
     private int horizontalResolution;
     private int verticalResolution;
     private int numUsedColors;
@@ -32,9 +46,14 @@ public class BmpWriter {
     private byte[] extraPictureBytes = new byte[0];
 
     private BmpWriter(BmpWriterBuilder builder) {
+        final long pictureLength = builder.pictureData != null ? builder.pictureData.length : builder.pictureSize;
         this.file = builder.outputFile;
         this.id = builder.id;
-        this.fileSize = 14 + 40 + builder.extraHeaderBytes.length + builder.pictureData.length;
+        this.fileSize = 14 + 40 + builder.extraHeaderBytes.length + pictureLength;
+        // File and picture sizes are unsigned 32-bit fields
+        if (this.fileSize > MAX_FILE_SIZE) {
+            throw new IllegalArgumentException("BMP files can't be larger than " + MAX_FILE_SIZE + " bytes, this one would be " + this.fileSize);
+        }
         this.reservedBytes = builder.reservedBytes;
         this.pictureOffset = 14 + 40 + builder.extraHeaderBytes.length;
         this.infoHeaderLength = 40;
@@ -43,7 +62,7 @@ public class BmpWriter {
         this.numPlanes = builder.numPlanes;
         this.bitsPerPixel = builder.bitsPerPixel;
         this.compressionType = builder.compressionType;
-        this.pictureSize = builder.pictureData.length;
+        this.pictureSize = pictureLength;
         this.horizontalResolution = builder.horizontalResolution;
         this.verticalResolution = builder.verticalResolution;
         this.numUsedColors = builder.numUsedColors;
@@ -54,37 +73,159 @@ public class BmpWriter {
     }
 
     /**
-     * Writes the BMP to the file this writer was initialized with.
+     * Writes the BMP to the file this writer was initialized with. The header and the picture data are written with a
+     * single gathering write to a temporary file next to it, which then replaces the file, so the file is never left
+     * partially written.
      *
      * @throws IOException If an I/O error occurs.
      */
     public void writeImage() throws IOException {
-        FileOutputStream fos = new FileOutputStream(this.file);
-        fos.write(id.getBytes());
-        fos.write(intToBytes(fileSize));
-        fos.write(reservedBytes);
-        fos.write(intToBytes(pictureOffset));
-        fos.write(intToBytes(infoHeaderLength));
-        fos.write(intToBytes(width));
-        fos.write(intToBytes(height));
-        fos.write(intToBytes(numPlanes, 2));
-        fos.write(intToBytes(bitsPerPixel, 2));
-        fos.write(intToBytes(compressionType));
-        fos.write(intToBytes(pictureSize));
-        fos.write(intToBytes(horizontalResolution));
-        fos.write(intToBytes(verticalResolution));
-        fos.write(intToBytes(numUsedColors));
-        fos.write(intToBytes(numImportantColors));
-        fos.write(extraHeaderBytes);
-        fos.write(pictureData);
-        fos.close();
+        final Path temporaryFile = getTemporaryFile();
+        boolean written = false;
+        try {
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer[] buffers = {encodeHeader(), ByteBuffer.wrap(pictureData)};
+                while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+                    channel.write(buffers);
+                }
+                channel.force(true);
+            }
+            replaceFile(temporaryFile);
+            written = true;
+        } finally {
+            if (!written) {
+                Files.deleteIfExists(temporaryFile);
+            }
+        }
+    }
+
+    /**
+     * Encodes the whole BMP in memory, instead of writing it to a file.
+     *
+     * @return The contents of the BMP file.
+     * @throws IllegalStateException If this writer was not given picture data.
+     */
+    public byte[] toByteArray() {
+        if (pictureData == null) {
+            throw new IllegalStateException("No picture data to encode");
+        }
+        final ByteBuffer header = encodeHeader();
+        final byte[] bmp = Arrays.copyOf(header.array(), header.remaining() + pictureData.length);
+        System.arraycopy(pictureData, 0, bmp, header.remaining(), pictureData.length);
+        return bmp;
+    }
+
+    /**
+     * Writes everything that goes before the picture data to the given stream, so that the caller can then stream
+     * {@link #getPictureSize()} bytes of picture data after it. Does not close the stream.
+     *
+     * @param fos The stream to write to.
+     * @throws IOException If an I/O error occurs.
+     */
+    public void writeHeader(OutputStream fos) throws IOException {
+        fos.write(encodeHeader().array());
+    }
+
+    /**
+     * Writes the header to the given stream, and returns a stream the picture data can then be written to in chunks.
+     * Closing the returned stream flushes the given one, and fails if exactly {@link #getPictureSize()} bytes of
+     * picture data were not written. The given stream is left open, as it belongs to the caller.
+     *
+     * @param out The stream to write the image to.
+     * @return The stream to write the picture data to.
+     * @throws IOException If an I/O error occurs writing the header.
+     */
+    public OutputStream openPictureData(OutputStream out) throws IOException {
+        writeHeader(out);
+        return new PictureDataOutputStream(out, pictureSize, out::flush);
+    }
+
+    /**
+     * Same as {@link #openPictureData(OutputStream)}, writing to a temporary file next to the file this writer was
+     * initialized with. Once all the picture data is written, closing the returned stream replaces the file with the
+     * temporary one. Otherwise, closing it discards the temporary file and leaves the file untouched.
+     */
+    public OutputStream openPictureData() throws IOException {
+        final Path temporaryFile = getTemporaryFile();
+        final FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+        try {
+            writeHeader(out);
+        } catch (IOException e) {
+            out.close();
+            Files.deleteIfExists(temporaryFile);
+            throw e;
+        }
+        return new PictureDataOutputStream(out, pictureSize, () -> {
+            boolean replaced = false;
+            try {
+                out.flush();
+                channel.force(true);
+                out.close();
+                replaceFile(temporaryFile);
+                replaced = true;
+            } finally {
+                if (!replaced) {
+                    out.close();
+                    Files.deleteIfExists(temporaryFile);
+                }
+            }
+        }, () -> {
+            out.close();
+            Files.deleteIfExists(temporaryFile);
+        });
+    }
+
+    /**
+     * Encodes everything that goes before the picture data.
+     *
+     * @return A buffer with the header, ready to be read.
+     */
+    private ByteBuffer encodeHeader() {
+        final byte[] idBytes = id.getBytes();
+        final ByteBuffer header = ByteBuffer.allocate(idBytes.length + reservedBytes.length + 48 + extraHeaderBytes.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.put(idBytes)
+                .putInt((int) fileSize)
+                .put(reservedBytes)
+                .putInt(pictureOffset)
+                .putInt(infoHeaderLength)
+                .putInt(width)
+                .putInt(height)
+                .putShort((short) numPlanes)
+                .putShort((short) bitsPerPixel)
+                .putInt(compressionType)
+                .putInt((int) pictureSize)
+                .putInt(horizontalResolution)
+                .putInt(verticalResolution)
+                .putInt(numUsedColors)
+                .putInt(numImportantColors)
+                .put(extraHeaderBytes);
+        header.flip();
+        return header;
+    }
+
+    private Path getTemporaryFile() {
+        return file.toPath().resolveSibling(file.getName() + ".tmp");
+    }
+
+    /**
+     * Moves the given temporary file over the file this writer was initialized with, atomically if the file system
+     * supports it.
+     */
+    private void replaceFile(Path temporaryFile) throws IOException {
+        try {
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
     public String getId() {
         return id;
     }
 
-    public int getFileSize() {
+    public long getFileSize() {
         return fileSize;
     }
 
@@ -120,7 +261,7 @@ public class BmpWriter {
         return compressionType;
     }
 
-    public int getPictureSize() {
+    public long getPictureSize() {
         return pictureSize;
     }
 
@@ -149,24 +290,6 @@ public class BmpWriter {
         return "BmpParser, parsed " + width + "x" + height + " bitmap image from " + file.getPath();
     }
 
-    /**
-     * Convert an int to byte array. See {@link BmpParser#bytesToInt(byte[])} for original source.
-     *
-     * @param number The int to convert to bytes.
-     * @param size The output byte array size. E.g. 2 for WORD, 4 for DWORD.
-     * @return The converted byte array.
-     */
-    private byte[] intToBytes(int number, int size) {
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        bb.putInt(number);
-        return Arrays.copyOfRange(bb.array(), 0, size);
-    }
-
-    private byte[] intToBytes(int number) {
-        return intToBytes(number, 4);
-    }
-
     public static class BmpWriterBuilder {
         private File outputFile;
         private String id = "BM";
@@ -183,6 +306,7 @@ public class BmpWriter {
         private int numUsedColors = 256;
         private int numImportantColors = 0;
         private byte[] pictureData;
+        private long pictureSize;
         private byte[] extraHeaderBytes = new byte[] {0, 0, 0, 0, 1, 1, 1, 0, 2, 2, 2, 0, 3, 3, 3, 0, 4, 4, 4, 0, 5, 5, 5, 0, 6, 6, 6, 0, 7, 7, 7, 0, 8, 8, 8, 0, 9, 9, 9, 0, 10, 10, 10, 0, 11, 11, 11, 0, 12, 12, 12, 0, 13, 13, 13, 0, 14, 14, 14, 0, 15, 15, 15, 0, 16, 16, 16, 0, 17, 17, 17, 0, 18, 18, 18, 0, 19, 19, 19, 0, 20, 20, 20, 0, 21, 21, 21, 0, 22, 22, 22, 0, 23, 23, 23, 0, 24, 24, 24, 0, 25, 25, 25, 0, 26, 26, 26, 0, 27, 27, 27, 0, 28, 28, 28, 0, 29, 29, 29, 0, 30, 30, 30, 0, 31, 31, 31, 0, 32, 32, 32, 0, 33, 33, 33, 0, 34, 34, 34, 0, 35, 35, 35, 0, 36, 36, 36, 0, 37, 37, 37, 0, 38, 38, 38, 0, 39, 39, 39, 0, 40, 40, 40, 0, 41, 41, 41, 0, 42, 42, 42, 0, 43, 43, 43, 0, 44, 44, 44, 0, 45, 45, 45, 0, 46, 46, 46, 0, 47, 47, 47, 0, 48, 48, 48, 0, 49, 49, 49, 0, 50, 50, 50, 0, 51, 51, 51, 0, 52, 52, 52, 0, 53, 53, 53, 0, 54, 54, 54, 0, 55, 55, 55, 0, 56, 56, 56, 0, 57, 57, 57, 0, 58, 58, 58, 0, 59, 59, 59, 0, 60, 60, 60, 0, 61, 61, 61, 0, 62, 62, 62, 0, 63, 63, 63, 0, 64, 64, 64, 0, 65, 65, 65, 0, 66, 66, 66, 0, 67, 67, 67, 0, 68, 68, 68, 0, 69, 69, 69, 0, 70, 70, 70, 0, 71, 71, 71, 0, 72, 72, 72, 0, 73, 73, 73, 0, 74, 74, 74, 0, 75, 75, 75, 0, 76, 76, 76, 0, 77, 77, 77, 0, 78, 78, 78, 0, 79, 79, 79, 0, 80, 80, 80, 0, 81, 81, 81, 0, 82, 82, 82, 0, 83, 83, 83, 0, 84, 84, 84, 0, 85, 85, 85, 0, 86, 86, 86, 0, 87, 87, 87, 0, 88, 88, 88, 0, 89, 89, 89, 0, 90, 90, 90, 0, 91, 91, 91, 0, 92, 92, 92, 0, 93, 93, 93, 0, 94, 94, 94, 0, 95, 95, 95, 0, 96, 96, 96, 0, 97, 97, 97, 0, 98, 98, 98, 0, 99, 99, 99, 0, 100, 100, 100, 0, 101, 101, 101, 0, 102, 102, 102, 0, 103, 103, 103, 0, 104, 104, 104, 0, 105, 105, 105, 0, 106, 106, 106, 0, 107, 107, 107, 0, 108, 108, 108, 0, 109, 109, 109, 0, 110, 110, 110, 0, 111, 111, 111, 0, 112, 112, 112, 0, 113, 113, 113, 0, 114, 114, 114, 0, 115, 115, 115, 0, 116, 116, 116, 0, 117, 117, 117, 0, 118, 118, 118, 0, 119, 119, 119, 0, 120, 120, 120, 0, 121, 121, 121, 0, 122, 122, 122, 0, 123, 123, 123, 0, 124, 124, 124, 0, 125, 125, 125, 0, 126, 126, 126, 0, 127, 127, 127, 0, -128, -128, -128, 0, -127, -127, -127, 0, -126, -126, -126, 0, -125, -125, -125, 0, -124, -124, -124, 0, -123, -123, -123, 0, -122, -122, -122, 0, -121, -121, -121, 0, -120, -120, -120, 0, -119, -119, -119, 0, -118, -118, -118, 0, -117, -117, -117, 0, -116, -116, -116, 0, -115, -115, -115, 0, -114, -114, -114, 0, -113, -113, -113, 0, -112, -112, -112, 0, -111, -111, -111, 0, -110, -110, -110, 0, -109, -109, -109, 0, -108, -108, -108, 0, -107, -107, -107, 0, -106, -106, -106, 0, -105, -105, -105, 0, -104, -104, -104, 0, -103, -103, -103, 0, -102, -102, -102, 0, -101, -101, -101, 0, -100, -100, -100, 0, -99, -99, -99, 0, -98, -98, -98, 0, -97, -97, -97, 0, -96, -96, -96, 0, -95, -95, -95, 0, -94, -94, -94, 0, -93, -93, -93, 0, -92, -92, -92, 0, -91, -91, -91, 0, -90, -90, -90, 0, -89, -89, -89, 0, -88, -88, -88, 0, -87, -87, -87, 0, -86, -86, -86, 0, -85, -85, -85, 0, -84, -84, -84, 0, -83, -83, -83, 0, -82, -82, -82, 0, -81, -81, -81, 0, -80, -80, -80, 0, -79, -79, -79, 0, -78, -78, -78, 0, -77, -77, -77, 0, -76, -76, -76, 0, -75, -75, -75, 0, -74, -74, -74, 0, -73, -73, -73, 0, -72, -72, -72, 0, -71, -71, -71, 0, -70, -70, -70, 0, -69, -69, -69, 0, -68, -68, -68, 0, -67, -67, -67, 0, -66, -66, -66, 0, -65, -65, -65, 0, -64, -64, -64, 0, -63, -63, -63, 0, -62, -62, -62, 0, -61, -61, -61, 0, -60, -60, -60, 0, -59, -59, -59, 0, -58, -58, -58, 0, -57, -57, -57, 0, -56, -56, -56, 0, -55, -55, -55, 0, -54, -54, -54, 0, -53, -53, -53, 0, -52, -52, -52, 0, -51, -51, -51, 0, -50, -50, -50, 0, -49, -49, -49, 0, -48, -48, -48, 0, -47, -47, -47, 0, -46, -46, -46, 0, -45, -45, -45, 0, -44, -44, -44, 0, -43, -43, -43, 0, -42, -42, -42, 0, -41, -41, -41, 0, -40, -40, -40, 0, -39, -39, -39, 0, -38, -38, -38, 0, -37, -37, -37, 0, -36, -36, -36, 0, -35, -35, -35, 0, -34, -34, -34, 0, -33, -33, -33, 0, -32, -32, -32, 0, -31, -31, -31, 0, -30, -30, -30, 0, -29, -29, -29, 0, -28, -28, -28, 0, -27, -27, -27, 0, -26, -26, -26, 0, -25, -25, -25, 0, -24, -24, -24, 0, -23, -23, -23, 0, -22, -22, -22, 0, -21, -21, -21, 0, -20, -20, -20, 0, -19, -19, -19, 0, -18, -18, -18, 0, -17, -17, -17, 0, -16, -16, -16, 0, -15, -15, -15, 0, -14, -14, -14, 0, -13, -13, -13, 0, -12, -12, -12, 0, -11, -11, -11, 0, -10, -10, -10, 0, -9, -9, -9, 0, -8, -8, -8, 0, -7, -7, -7, 0, -6, -6, -6, 0, -5, -5, -5, 0, -4, -4, -4, 0, -3, -3, -3, 0, -2, -2, -2, 0, -1, -1, -1, 0};
 
         public BmpWriterBuilder file(File file) {
@@ -240,12 +364,28 @@ public class BmpWriter {
             return this;
         }
 
+        /**
+         * Sets the size of the picture data without providing it, for writers that are only used to
+         * {@link BmpWriter#writeHeader(OutputStream) write the header}. Ignored if picture data is provided.
+         */
+        public BmpWriterBuilder pictureSize(long pictureSize) {
+            this.pictureSize = pictureSize;
+            return this;
+        }
+
         public BmpWriterBuilder shadowNumber(int shadowNumber){
             byte[] shadowNumber2 = intToBytes(shadowNumber, 2);
             System.arraycopy(shadowNumber2, 0, reservedBytes, 2, 2);
             return this;
         }
 
+        /**
+         * Stores the shadow number along with the field the secret was shared in, see {@link Field}.
+         */
+        public BmpWriterBuilder shadowNumber(int shadowNumber, Field field) {
+            return shadowNumber(field.encodeShadowNumber(shadowNumber));
+        }
+
         public BmpWriterBuilder seed(int seedNumber){
             byte[] seedNumber2 = intToBytes(seedNumber, 2);
             System.arraycopy(seedNumber2, 0, reservedBytes, 0, 2);
@@ -254,7 +394,7 @@ public class BmpWriter {
 
         public BmpWriterBuilder(BmpParser parser) {
             this.id(parser.getId())
-                .reservedBytes(parser.getReservedBytes())
+                .reservedBytes(parser.getReservedBytes().clone())
                 .width(parser.getWidth())
                 .height(parser.getHeight())
                 .compressionType(parser.getCompressionType())
@@ -262,7 +402,8 @@ public class BmpWriter {
                 .secretHeight(parser.getSecretHeight())
                 .numUsedColors(parser.getNumUsedColors())
                 .numImportantColors(parser.getNumImportantColors())
-                .pictureData(parser.getPictureData());
+                .pictureSize(parser.getPictureSize())
+                .pictureData(parser.getLoadedPictureData());
         }
 
         public BmpWriterBuilder() {}
@@ -278,4 +419,74 @@ public class BmpWriter {
             return Arrays.copyOfRange(bb.array(), 0, size);
         }
     }
+
+    /**
+     * Action run when closing a {@link PictureDataOutputStream}.
+     */
+    @FunctionalInterface
+    private interface CloseAction {
+        void run() throws IOException;
+    }
+
+    /**
+     * Stream that accepts exactly a given number of bytes of picture data.
+     */
+    private static class PictureDataOutputStream extends FilterOutputStream {
+        private long remaining;
+        private boolean closed;
+        private final CloseAction onComplete, onIncomplete;
+
+        /**
+         * @param out The stream to write to.
+         * @param length The number of bytes to accept.
+         * @param onComplete What to do to close {@code out} if all bytes were written. If null, {@code out} is closed.
+         * @param onIncomplete What to do to close {@code out} otherwise. If null, {@code out} is closed.
+         */
+        PictureDataOutputStream(OutputStream out, long length, CloseAction onComplete, CloseAction onIncomplete) {
+            super(out);
+            this.remaining = length;
+            this.onComplete = onComplete != null ? onComplete : out::close;
+            this.onIncomplete = onIncomplete != null ? onIncomplete : out::close;
+        }
+
+        PictureDataOutputStream(OutputStream out, long length, CloseAction onClose) {
+            this(out, length, onClose, onClose);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > remaining) {
+                throw new IOException("Tried to write " + (len - remaining) + " bytes past the end of the picture data");
+            }
+            out.write(b, off, len);
+            remaining -= len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean complete = false;
+            try {
+                flush();
+                complete = remaining == 0;
+            } finally {
+                if (complete) {
+                    onComplete.run();
+                } else {
+                    onIncomplete.run();
+                }
+            }
+            if (!complete) {
+                throw new IOException("Picture data is missing " + remaining + " bytes");
+            }
+        }
+    }
 }
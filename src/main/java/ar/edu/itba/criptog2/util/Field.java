@@ -0,0 +1,76 @@
+package ar.edu.itba.criptog2.util;
+
+/**
+ * The finite fields sections of the secret can be shared in. Which one a shadow was made with is stored in the highest
+ * bit of its shadow number, in the reserved bytes of its header, so that shadows made before the flag existed are read
+ * as {@link #GF257}.
+ */
+public enum Field {
+    /**
+     * Integers modulo 257, see {@link GF257}. Evaluations of 256 can't be hidden in a byte, so polynomials that have
+     * one are adjusted, which slightly alters the recovered secret. There can be at most 255 shadows: with 256, every
+     * non-zero x is a shadow number, so every polynomial of degree 1 evaluates to 256 for some shadow, and adjusting
+     * it would leave a constant.
+     */
+    GF257("GF(257)", 0, 255),
+    /**
+     * GF(2^8), see {@link GF256}. Every element fits in a byte, so every shared section is recovered exactly, but there
+     * can be at most 255 shadows.
+     */
+    GF256("GF(2^8)", 0x8000, 255);
+
+    /**
+     * Bits of the stored shadow number that hold the number itself.
+     */
+    static final int SHADOW_NUMBER_MASK = 0x7FFF;
+
+    private final String name;
+    private final int flag;
+    private final int maxShadows;
+
+    Field(String name, int flag, int maxShadows) {
+        this.name = name;
+        this.flag = flag;
+        this.maxShadows = maxShadows;
+    }
+
+    /**
+     * @return How many shadows can be made in this field. Shadows are numbered 1, 2, ..., n, and shadow numbers must
+     * be distinct non-zero elements of the field.
+     */
+    public int getMaxShadows() {
+        return maxShadows;
+    }
+
+    /**
+     * @param shadowNumber A shadow number.
+     * @return The element of this field the shadow number stands for, or -1 if it doesn't stand for any.
+     */
+    public int toElement(int shadowNumber) {
+        if (this == GF257) {
+            return shadowNumber % 257;
+        }
+        return shadowNumber <= 255 ? shadowNumber : -1;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * @param shadowNumber A shadow number.
+     * @return The value to store in the reserved bytes for the given shadow number of a shadow in this field.
+     */
+    int encodeShadowNumber(int shadowNumber) {
+        return (shadowNumber & SHADOW_NUMBER_MASK) | flag;
+    }
+
+    /**
+     * @param storedShadowNumber The shadow number as stored in the reserved bytes.
+     * @return The field the shadow was made with.
+     */
+    static Field decode(int storedShadowNumber) {
+        return (storedShadowNumber & GF256.flag) != 0 ? GF256 : GF257;
+    }
+}
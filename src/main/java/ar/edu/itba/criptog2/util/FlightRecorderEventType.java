@@ -0,0 +1,136 @@
+package ar.edu.itba.criptog2.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A type of JDK Flight Recorder event, defined at runtime with {@code jdk.jfr.EventFactory}. {@code jdk.jfr} is not
+ * part of the Java 8 API and Java 8 runtimes before 8u262 don't have it, so it is only reached through reflection, and
+ * event types are only defined when the runtime has it. Events are handed out as plain objects.
+ */
+final class FlightRecorderEventType {
+
+    private final Object factory;
+    private final Method newEvent, begin, shouldCommit, set, commit;
+
+    private FlightRecorderEventType(Object factory, Method newEvent, Class<?> eventClass) throws NoSuchMethodException {
+        this.factory = factory;
+        this.newEvent = newEvent;
+        this.begin = eventClass.getMethod("begin");
+        this.shouldCommit = eventClass.getMethod("shouldCommit");
+        this.set = eventClass.getMethod("set", int.class, Object.class);
+        this.commit = eventClass.getMethod("commit");
+    }
+
+    /**
+     * @param name The name of the event type.
+     * @param label A human readable name of the event type.
+     * @param description What an event of this type stands for.
+     * @return A builder to add the fields of the event type to.
+     */
+    static Builder builder(String name, String label, String description) {
+        return new Builder(name, label, description);
+    }
+
+    /**
+     * @return A new event of this type, which has begun.
+     */
+    Object begin() {
+        final Object event = invoke(newEvent, factory);
+        invoke(begin, event);
+        return event;
+    }
+
+    /**
+     * Ends the given event and commits it if it is enabled, with the given values of its fields, in the order they
+     * were added to the builder.
+     */
+    void commit(Object event, Object... values) {
+        if ((Boolean) invoke(shouldCommit, event)) {
+            for (int i = 0; i < values.length; i++) {
+                invoke(set, event, i, values[i]);
+            }
+        }
+        invoke(commit, event);
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Error recording Flight Recorder event: " + e, e);
+        }
+    }
+
+    static final class Builder {
+        private final String name, label, description;
+        private final List<String> fieldNames = new ArrayList<>();
+        private final List<String> fieldLabels = new ArrayList<>();
+        private final List<Class<?>> fieldTypes = new ArrayList<>();
+
+        private Builder(String name, String label, String description) {
+            this.name = name;
+            this.label = label;
+            this.description = description;
+        }
+
+        /**
+         * Adds a field to the event type.
+         *
+         * @param name The name of the field, a Java identifier.
+         * @param label A human readable name of the field.
+         * @param type The type of the field, a primitive type or String.
+         */
+        Builder field(String name, String label, Class<?> type) {
+            fieldNames.add(name);
+            fieldLabels.add(label);
+            fieldTypes.add(type);
+            return this;
+        }
+
+        /**
+         * @return The event type, in the "VisualSSS" category and without stack traces, or null if the runtime has no
+         * Flight Recorder events.
+         */
+        FlightRecorderEventType define() {
+            try {
+                final List<Object> annotations = new ArrayList<>();
+                annotations.add(annotation("Name", name));
+                annotations.add(annotation("Label", label));
+                annotations.add(annotation("Category", new String[] {"VisualSSS"}));
+                annotations.add(annotation("StackTrace", false));
+                annotations.add(annotation("Description", description));
+
+                final Constructor<?> newField = Class.forName("jdk.jfr.ValueDescriptor")
+                        .getConstructor(Class.class, String.class, List.class);
+                final List<Object> fields = new ArrayList<>();
+                for (int i = 0; i < fieldNames.size(); i++) {
+                    final Object fieldLabel = annotation("Label", fieldLabels.get(i));
+                    fields.add(newField.newInstance(fieldTypes.get(i), fieldNames.get(i),
+                            Collections.singletonList(fieldLabel)));
+                }
+
+                final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+                final Object factory = eventFactory.getMethod("create", List.class, List.class)
+                        .invoke(null, annotations, fields);
+                return new FlightRecorderEventType(factory, eventFactory.getMethod("newEvent"),
+                        Class.forName("jdk.jfr.Event"));
+            } catch (ReflectiveOperationException | LinkageError e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return A {@code jdk.jfr.AnnotationElement} of the given {@code jdk.jfr} annotation, with the given value.
+         */
+        private static Object annotation(String type, Object value) throws ReflectiveOperationException {
+            return Class.forName("jdk.jfr.AnnotationElement")
+                    .getConstructor(Class.class, Object.class)
+                    .newInstance(Class.forName("jdk.jfr." + type), value);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package ar.edu.itba.criptog2.util;
+
+/**
+ * Primitive arithmetic over GF(2^8), with elements as polynomials over GF(2) modulo x^8 + x^4 + x^3 + x^2 + 1. All
+ * values are plain ints in the range [0, 255], so unlike {@link GF257} every element fits in a byte. Addition and
+ * subtraction are both XOR; multiplication and inversion are table lookups, so none of the operations allocate.
+ */
+public final class GF256 {
+
+    /**
+     * Number of elements in the field.
+     */
+    public static final int ORDER = 256;
+
+    /**
+     * The irreducible polynomial elements are reduced by, x^8 + x^4 + x^3 + x^2 + 1.
+     */
+    private static final int POLYNOMIAL = 0x11D;
+
+    /**
+     * x, i.e. 2, is primitive for {@link #POLYNOMIAL}, so its powers generate every non-zero element.
+     */
+    private static final int GENERATOR = 2;
+
+    /**
+     * Logarithm assigned to 0. Any sum involving it lands in the zero-filled upper half of {@link #EXP}, which makes
+     * {@link #mul(int, int)} branch-free.
+     */
+    private static final int ZERO_LOG = 2 * (ORDER - 1);
+
+    private static final int[] EXP = new int[2 * ZERO_LOG + 1];
+    private static final int[] LOG = new int[ORDER];
+    private static final int[] INVERSE = new int[ORDER];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < ORDER - 1; i++) {
+            EXP[i] = x;
+            EXP[i + ORDER - 1] = x;
+            LOG[x] = i;
+            // x * GENERATOR, reduced by the polynomial if it no longer fits in a byte
+            x *= GENERATOR;
+            if (x >= ORDER) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        LOG[0] = ZERO_LOG;
+        for (int a = 1; a < ORDER; a++) {
+            INVERSE[a] = EXP[ORDER - 1 - LOG[a]];
+        }
+    }
+
+    private GF256() {}
+
+    /**
+     * Adds, or equivalently subtracts, two field elements.
+     */
+    public static int add(int a, int b) {
+        return a ^ b;
+    }
+
+    public static int mul(int a, int b) {
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    /**
+     * @param a A non-zero field element.
+     * @return The multiplicative inverse of {@code a}.
+     * @throws ArithmeticException If {@code a} is 0.
+     */
+    public static int inverse(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse in GF(2^8)");
+        }
+        return INVERSE[a];
+    }
+
+    /**
+     * @param a A field element.
+     * @return A table of {@code a * b} for every b in [0, 255], for multiplying many elements by the same one.
+     */
+    public static byte[] multiplicationTable(int a) {
+        final byte[] table = new byte[ORDER];
+        for (int b = 0; b < ORDER; b++) {
+            table[b] = (byte) mul(a, b);
+        }
+        return table;
+    }
+
+    /**
+     * Evaluates a polynomial in place using Horner's method.
+     *
+     * @param coefficients Field elements, where {@code coefficients[i]} is the coefficient of x^i.
+     * @param x The point to evaluate in, in [0, 255].
+     * @return The evaluation, in [0, 255].
+     */
+    public static int evaluate(int[] coefficients, int x) {
+        int result = 0;
+        for (int i = coefficients.length - 1; i >= 0; i--) {
+            result = add(mul(result, x), coefficients[i]);
+        }
+        return result;
+    }
+}
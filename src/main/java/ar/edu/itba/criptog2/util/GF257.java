@@ -0,0 +1,94 @@
+package ar.edu.itba.criptog2.util;
+
+/**
+ * Primitive arithmetic over the finite field of integers modulo 257, which is the field every section of the secret
+ * is shared in. All values are plain ints in the range [0, 256]; multiplication and inversion are table lookups, so
+ * none of the operations allocate.
+ */
+public final class GF257 {
+
+    /**
+     * Number of elements in the field.
+     */
+    public static final int ORDER = 257;
+
+    /**
+     * 3 is a primitive root modulo 257, so its powers generate every non-zero element.
+     */
+    private static final int GENERATOR = 3;
+
+    /**
+     * Logarithm assigned to 0. Any sum involving it lands in the zero-filled upper half of {@link #EXP}, which makes
+     * {@link #mul(int, int)} branch-free.
+     */
+    private static final int ZERO_LOG = 2 * (ORDER - 1);
+
+    private static final int[] EXP = new int[2 * ZERO_LOG + 1];
+    private static final int[] LOG = new int[ORDER];
+    private static final int[] INVERSE = new int[ORDER];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < ORDER - 1; i++) {
+            EXP[i] = x;
+            EXP[i + ORDER - 1] = x;
+            LOG[x] = i;
+            x = x * GENERATOR % ORDER;
+        }
+        LOG[0] = ZERO_LOG;
+        for (int a = 1; a < ORDER; a++) {
+            INVERSE[a] = EXP[ORDER - 1 - LOG[a]];
+        }
+    }
+
+    private GF257() {}
+
+    /**
+     * Reduces any int to its representative in [0, 256].
+     */
+    public static int reduce(int a) {
+        return Math.floorMod(a, ORDER);
+    }
+
+    public static int add(int a, int b) {
+        int sum = a + b;
+        return sum >= ORDER ? sum - ORDER : sum;
+    }
+
+    public static int sub(int a, int b) {
+        int difference = a - b;
+        return difference < 0 ? difference + ORDER : difference;
+    }
+
+    public static int mul(int a, int b) {
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    /**
+     * @param a A non-zero field element.
+     * @return The multiplicative inverse of {@code a}.
+     * @throws ArithmeticException If {@code a} is 0.
+     */
+    public static int inverse(int a) {
+        if (a == 0) {
+            throw new ArithmeticException("0 has no inverse modulo " + ORDER);
+        }
+        return INVERSE[a];
+    }
+
+    /**
+     * Evaluates a polynomial in place using Horner's method.
+     *
+     * @param coefficients Field elements, where {@code coefficients[i]} is the coefficient of x^i.
+     * @param x The point to evaluate in. Reduced modulo 257 first.
+     * @return The evaluation, in [0, 256].
+     */
+    public static int evaluate(int[] coefficients, int x) {
+        x = reduce(x);
+        int result = 0;
+        for (int i = coefficients.length - 1; i >= 0; i--) {
+            result = add(mul(result, x), coefficients[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,61 @@
+package ar.edu.itba.criptog2.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared executor for reading and writing pictures concurrently. Parsing and writing BMPs is mostly waiting on
+ * storage, so several files can be in flight at once regardless of how many threads are used for computing.
+ */
+public final class IoTasks {
+
+    /**
+     * Maximum number of files read or written at once.
+     */
+    private static final int MAX_THREADS = 8;
+
+    private static final ExecutorService EXECUTOR;
+
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "io");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        EXECUTOR = executor;
+    }
+
+    private IoTasks() {}
+
+    /**
+     * Starts running the given task on the shared I/O executor.
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    /**
+     * Waits for a task submitted with {@link #submit(Callable)} to finish.
+     *
+     * @return The task's result.
+     * @throws Exception The exception the task threw, if any.
+     */
+    public static <T> T get(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ar.edu.itba.criptog2.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The sequence of bytes the secret is masked with, i.e. {@code new java.util.Random(seed).nextInt(256)} called over and
+ * over, but able to jump to any position of the sequence.
+ * <p>
+ * {@link java.util.Random} is a 48-bit linear congruential generator, and {@code nextInt(256)} always advances it
+ * exactly once and returns the top 8 bits of the new state. Advancing n times is itself an affine map of the state,
+ * which can be computed by repeated squaring, so jumping to any position takes O(log n) steps. This lets different
+ * ranges of the sequence be generated independently, and thus concurrently.
+ * <p>
+ * The same property speeds up XORing a single range: 8 states, one per byte of a long, each advance 8 steps at a time
+ * with a precomputed affine map. Their multiplications don't depend on each other, so they are not bound by the
+ * latency of one long chain of multiplications, and their bytes are XORed with the data a long at a time.
+ */
+public final class Keystream {
+
+    // Same constants as java.util.Random
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+    private static final long ADDEND = 0xBL;
+    private static final long MASK = (1L << 48) - 1;
+
+    /**
+     * Number of bytes of the sequence generated at once by {@link #xor(byte[], int, int)}, one per byte of a long.
+     */
+    private static final int LANES = 8;
+
+    /**
+     * Affine map that advances the state {@link #LANES} steps.
+     */
+    private static final long LANE_MULTIPLIER, LANE_ADDEND;
+
+    static {
+        long multiplier = 1, addend = 0;
+        for (int i = 0; i < LANES; i++) {
+            multiplier = (multiplier * MULTIPLIER) & MASK;
+            addend = (addend * MULTIPLIER + ADDEND) & MASK;
+        }
+        LANE_MULTIPLIER = multiplier;
+        LANE_ADDEND = addend;
+    }
+
+    private long state;
+
+    /**
+     * Creates a keystream at the start of the sequence of {@code new Random(seed)}.
+     */
+    public Keystream(long seed) {
+        this.state = (seed ^ MULTIPLIER) & MASK;
+    }
+
+    /**
+     * Creates a keystream positioned so that the next byte is the one at {@code offset}.
+     */
+    public Keystream(long seed, long offset) {
+        this(seed);
+        skip(offset);
+    }
+
+    /**
+     * @return The next byte of the sequence, in [0, 255]. Same as {@code Random.nextInt(256)}.
+     */
+    public int next() {
+        state = (state * MULTIPLIER + ADDEND) & MASK;
+        return (int) (state >>> 40);
+    }
+
+    /**
+     * Advances the sequence without generating the skipped bytes.
+     *
+     * @param steps How many bytes to skip. Must not be negative.
+     */
+    public void skip(long steps) {
+        if (steps < 0) {
+            throw new IllegalArgumentException("Can't skip a negative number of steps");
+        }
+        // Affine map for the steps skipped so far, and for the next power of two steps
+        long multiplier = 1, addend = 0;
+        long stepMultiplier = MULTIPLIER, stepAddend = ADDEND;
+        while (steps > 0) {
+            if ((steps & 1) != 0) {
+                multiplier = (multiplier * stepMultiplier) & MASK;
+                addend = (addend * stepMultiplier + stepAddend) & MASK;
+            }
+            stepAddend = (stepAddend * (stepMultiplier + 1)) & MASK;
+            stepMultiplier = (stepMultiplier * stepMultiplier) & MASK;
+            steps >>>= 1;
+        }
+        state = (state * multiplier + addend) & MASK;
+    }
+
+    /**
+     * XORs {@code data[0] .. data[length - 1]} with the next {@code length} bytes of the sequence.
+     */
+    public void xor(byte[] data, int length) {
+        xor(data, 0, length);
+    }
+
+    /**
+     * XORs {@code data[from] .. data[to - 1]} with the next {@code to - from} bytes of the sequence, a long at a time.
+     */
+    public void xor(byte[] data, int from, int to) {
+        int i = from;
+        if (to - from >= LANES) {
+            final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            // The state after each of the next 8 steps
+            long s0 = (state * MULTIPLIER + ADDEND) & MASK;
+            long s1 = (s0 * MULTIPLIER + ADDEND) & MASK;
+            long s2 = (s1 * MULTIPLIER + ADDEND) & MASK;
+            long s3 = (s2 * MULTIPLIER + ADDEND) & MASK;
+            long s4 = (s3 * MULTIPLIER + ADDEND) & MASK;
+            long s5 = (s4 * MULTIPLIER + ADDEND) & MASK;
+            long s6 = (s5 * MULTIPLIER + ADDEND) & MASK;
+            long s7 = (s6 * MULTIPLIER + ADDEND) & MASK;
+            for (; i + LANES <= to; i += LANES) {
+                final long keys = (s0 >>> 40) | (s1 >>> 40) << 8 | (s2 >>> 40) << 16 | (s3 >>> 40) << 24
+                        | (s4 >>> 40) << 32 | (s5 >>> 40) << 40 | (s6 >>> 40) << 48 | (s7 >>> 40) << 56;
+                buffer.putLong(i, buffer.getLong(i) ^ keys);
+                state = s7;
+                s0 = (s0 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+                s1 = (s1 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+                s2 = (s2 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+                s3 = (s3 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+                s4 = (s4 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+                s5 = (s5 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+                s6 = (s6 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+                s7 = (s7 * LANE_MULTIPLIER + LANE_ADDEND) & MASK;
+            }
+        }
+        for (; i < to; i++) {
+            data[i] = (byte) (data[i] ^ next());
+        }
+    }
+
+    /**
+     * XORs {@code data[0] .. data[length - 1]} with the bytes of the sequence of {@code seed} starting at
+     * {@code offset}, splitting the range across the threads of {@code parallel}. Same result as XORing sequentially.
+     *
+     * @param seed The seed of the sequence.
+     * @param offset Position in the sequence of the byte {@code data[0]} is XORed with.
+     * @param data The data to XOR.
+     * @param length How many bytes of {@code data} to XOR.
+     * @param parallel The threads to use.
+     */
+    public static void xor(final long seed, final long offset, final byte[] data, final int length, final ParallelSections parallel) {
+        parallel.process(length, (from, to) -> new Keystream(seed, offset + from).xor(data, from, to));
+    }
+}
@@ -1,6 +1,5 @@
 package ar.edu.itba.criptog2.util;
 
-import java.math.BigInteger;
 import java.util.List;
 
 /**
@@ -8,6 +7,14 @@ import java.util.List;
  */
 public class LagrangeInterpolator {
 
+    /**
+     * Finds the polynomial of degree at most {@code points.size() - 1} that goes through all the given points, with all
+     * arithmetic done modulo {@code modulo}.
+     *
+     * @param points The points to interpolate. X values must be distinct modulo {@code modulo}.
+     * @param modulo A prime modulus.
+     * @return The interpolated polynomial, with exactly {@code points.size()} coefficients in [0, modulo).
+     */
     public Polynomial interpolate(List<Point> points, int modulo) {
         if (points == null) {
             throw new IllegalArgumentException("xs and ys must not be null");
@@ -17,36 +24,185 @@ public class LagrangeInterpolator {
             throw new IllegalArgumentException("Need at least 2 points to interpolate");
         }
 
-        Polynomial nonModuloResult = new Polynomial(0, 0);
+        int[] xs = new int[size];
+        int[] ys = new int[size];
         for (int i = 0; i < size; i++) {
-//            Polynomial numerator = new Polynomial(ys[i], 0); //ys[i] * x^0
-            Polynomial numerator = new Polynomial(1, 0); //1 * x^0
+            xs[i] = points.get(i).getX();
+            ys[i] = Math.floorMod(points.get(i).getY(), modulo);
+        }
+        int[] result = new int[size];
+        interpolate(weights(xs, modulo), ys, modulo, result);
+        return new Polynomial(result);
+    }
+
+    /**
+     * Computes the Lagrange coefficient matrix (the inverse of the Vandermonde matrix) for the given x values. Since it
+     * only depends on the x values, it can be computed once and then reused with
+     * {@link #interpolate(int[][], int[], int, int[])} for any number of y vectors.
+     * <p>
+     * Works on primitive coefficient arrays: the product of every (x - x_j) is built once, and each basis polynomial
+     * is obtained from it by synthetic division.
+     *
+     * @param xs The x values. Must be distinct modulo {@code modulo}.
+     * @param modulo A prime modulus.
+     * @return A matrix {@code w} where {@code w[d][i]} is the coefficient of x^d in the i-th Lagrange basis polynomial.
+     * @throws ArithmeticException If two x values are equal modulo {@code modulo}.
+     */
+    public int[][] weights(int[] xs, int modulo) {
+        int size = xs.length;
+        if (size < 2) {
+            throw new IllegalArgumentException("Need at least 2 points to interpolate");
+        }
+        int[] reducedXs = new int[size];
+        for (int i = 0; i < size; i++) {
+            reducedXs[i] = Math.floorMod(xs[i], modulo);
+        }
+
+        // (x - xs[0]) * (x - xs[1]) * ... * (x - xs[size-1])
+        int[] master = new int[size + 1];
+        master[0] = 1;
+        for (int j = 0; j < size; j++) {
+            for (int d = j + 1; d > 0; d--) {
+                master[d] = Math.floorMod(master[d - 1] - multiply(reducedXs[j], master[d], modulo), modulo);
+            }
+            master[0] = Math.floorMod(-multiply(reducedXs[j], master[0], modulo), modulo);
+        }
+
+        int[][] weights = new int[size][size];
+        int[] basis = new int[size];
+        for (int i = 0; i < size; i++) {
+            // master / (x - xs[i])
+            basis[size - 1] = master[size];
+            for (int d = size - 2; d >= 0; d--) {
+                basis[d] = (master[d + 1] + multiply(reducedXs[i], basis[d + 1], modulo)) % modulo;
+            }
+
+            int denominator = 1;
+            for (int j = 0; j < size; j++) {
+                if (j != i) {
+                    denominator = multiply(denominator, Math.floorMod(reducedXs[i] - reducedXs[j], modulo), modulo);
+                }
+            }
+            int inverse = modInverse(denominator, modulo);
+            for (int d = 0; d < size; d++) {
+                weights[d][i] = multiply(inverse, basis[d], modulo);
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Interpolates using a precomputed coefficient matrix. This is a plain matrix-vector product with a single modulo
+     * per coefficient, and does not allocate.
+     *
+     * @param weights The matrix returned by {@link #weights(int[], int)} for the x values of the points.
+     * @param ys The y values, in [0, modulo), in the same order as the x values the weights were computed for.
+     * @param modulo The modulus the weights were computed with.
+     * @param coefficients Where to store the coefficients of the interpolated polynomial, lowest degree first.
+     */
+    public void interpolate(int[][] weights, int[] ys, int modulo, int[] coefficients) {
+        for (int d = 0; d < weights.length; d++) {
+            final int[] row = weights[d];
+            long sum = 0;
+            for (int i = 0; i < row.length; i++) {
+                sum += (long) row[i] * ys[i];
+            }
+            coefficients[d] = (int) (sum % modulo);
+        }
+    }
+
+    /**
+     * Computes the Lagrange coefficient matrix for the given x values like {@link #weights(int[], int)}, but in
+     * GF(2^8), where subtraction is XOR.
+     *
+     * @param xs The x values, in [0, 255]. Must be distinct.
+     * @return A matrix {@code w} where {@code w[d][i]} is the coefficient of x^d in the i-th Lagrange basis polynomial.
+     * @throws ArithmeticException If two x values are equal.
+     */
+    public int[][] weightsInGF256(int[] xs) {
+        int size = xs.length;
+        if (size < 2) {
+            throw new IllegalArgumentException("Need at least 2 points to interpolate");
+        }
+
+        // (x + xs[0]) * (x + xs[1]) * ... * (x + xs[size-1])
+        int[] master = new int[size + 1];
+        master[0] = 1;
+        for (int j = 0; j < size; j++) {
+            for (int d = j + 1; d > 0; d--) {
+                master[d] = GF256.add(master[d - 1], GF256.mul(xs[j], master[d]));
+            }
+            master[0] = GF256.mul(xs[j], master[0]);
+        }
+
+        int[][] weights = new int[size][size];
+        int[] basis = new int[size];
+        for (int i = 0; i < size; i++) {
+            // master / (x + xs[i])
+            basis[size - 1] = master[size];
+            for (int d = size - 2; d >= 0; d--) {
+                basis[d] = GF256.add(master[d + 1], GF256.mul(xs[i], basis[d + 1]));
+            }
+
             int denominator = 1;
             for (int j = 0; j < size; j++) {
-                if(j != i) {
-                    denominator *= (points.get(i).getX() - points.get(j).getX());
-                    Polynomial x = new Polynomial(1, 1).minus(new Polynomial(points.get(j).getX(), 0)); // (1 * x^1 - xs[i] * x^0)
-                    numerator = numerator.times(x);
+                if (j != i) {
+                    denominator = GF256.mul(denominator, GF256.add(xs[i], xs[j]));
                 }
             }
-            int coefficient = points.get(i).getY() * modInverse(denominator, modulo);
-            Polynomial term = numerator.times(new Polynomial(coefficient, 0));
-            nonModuloResult = nonModuloResult.plus(term);
+            int inverse = GF256.inverse(denominator);
+            for (int d = 0; d < size; d++) {
+                weights[d][i] = GF256.mul(inverse, basis[d]);
+            }
         }
+        return weights;
+    }
 
-        // Apply modulo at the end
-        Polynomial result = new Polynomial(0, 0);
-        for (int degree = nonModuloResult.getDegree(); degree >= 0 ; degree--) {
-            BigInteger moduloExponent = nonModuloResult.getCoefficients()[degree].remainder(BigInteger.valueOf(modulo));
-            if (moduloExponent.compareTo(BigInteger.ZERO) < 0) {
-                moduloExponent = moduloExponent.add(BigInteger.valueOf(modulo));
+    /**
+     * Interpolates in GF(2^8) using a precomputed coefficient matrix, like {@link #interpolate(int[][], int[], int, int[])}.
+     *
+     * @param weights The matrix returned by {@link #weightsInGF256(int[])} for the x values of the points.
+     * @param ys The y values, in [0, 255], in the same order as the x values the weights were computed for.
+     * @param coefficients Where to store the coefficients of the interpolated polynomial, lowest degree first.
+     */
+    public void interpolateInGF256(int[][] weights, int[] ys, int[] coefficients) {
+        for (int d = 0; d < weights.length; d++) {
+            final int[] row = weights[d];
+            int sum = 0;
+            for (int i = 0; i < row.length; i++) {
+                sum ^= GF256.mul(row[i], ys[i]);
             }
-            result = result.plus(new Polynomial(moduloExponent, degree));
+            coefficients[d] = sum;
         }
-        return result;
     }
 
-    private int modInverse(Integer x, Integer mod) {
-        return new Integer((new BigInteger(x.toString()).modInverse(new BigInteger(mod.toString()))).toString());
+    private int multiply(int a, int b, int modulo) {
+        return (int) ((long) a * b % modulo);
+    }
+
+    /**
+     * Extended Euclidean algorithm.
+     *
+     * @throws ArithmeticException If {@code x} is not invertible modulo {@code mod}.
+     */
+    private int modInverse(int x, int mod) {
+        if (mod == GF257.ORDER) {
+            return GF257.inverse(x);
+        }
+        int oldR = x, r = mod;
+        int oldS = 1, s = 0;
+        while (r != 0) {
+            int quotient = oldR / r;
+            int tmp = r;
+            r = oldR - quotient * r;
+            oldR = tmp;
+            tmp = s;
+            s = oldS - quotient * s;
+            oldS = tmp;
+        }
+        if (oldR != 1) {
+            throw new ArithmeticException(x + " is not invertible modulo " + mod);
+        }
+        return Math.floorMod(oldS, mod);
     }
 }
@@ -0,0 +1,117 @@
+package ar.edu.itba.criptog2.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Hides bytes in, and extracts bytes from, the least significant bits of picture data. Each hidden byte takes 8
+ * bytes of picture data, most significant bit first. Works directly on the picture arrays with masks and shifts, so
+ * nothing is allocated.
+ * <p>
+ * Ranges of bytes are hidden and extracted SWAR style, the 8 bytes of picture data of each hidden byte read and written
+ * as a single little-endian long: the bits of the hidden byte are spread to, or gathered from, the lowest bit of each
+ * byte of the long with a multiplication, instead of one byte at a time. Results are the same as with the single byte
+ * methods.
+ */
+public final class LsbCodec {
+
+    /**
+     * The lowest bit of each byte of a long.
+     */
+    private static final long LSBS = 0x0101010101010101L;
+
+    /**
+     * Byte i of a little-endian long selects bit 7 - i, the bit hidden in the i-th byte of picture data.
+     */
+    private static final long BIT_SELECTORS = 0x0102040810204080L;
+
+    /**
+     * Added to bytes that are either 0 or a single bit, sets their highest bit only if they are not 0, without carrying.
+     */
+    private static final long HIGH_BITS_IF_NOT_ZERO = 0x7F7F7F7F7F7F7F7FL;
+
+    /**
+     * Moves the lowest bit of byte i of a long to bit 63 - i, with no two products overlapping in the highest byte.
+     */
+    private static final long GATHER = 0x8040201008040201L;
+
+    private LsbCodec() {}
+
+    /**
+     * Replaces the least significant bit of {@code data[offset] .. data[offset + 7]} with the bits of {@code value}.
+     *
+     * @param data Picture data to hide the byte in.
+     * @param offset Index of the first of the 8 bytes to modify.
+     * @param value The byte to hide. Only its 8 lowest bits are used.
+     */
+    public static void embed(byte[] data, int offset, int value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) ((data[offset + i] & 0xFE) | ((value >>> (7 - i)) & 1));
+        }
+    }
+
+    /**
+     * Concatenates the least significant bit of {@code data[offset] .. data[offset + 7]} into a byte.
+     *
+     * @param data Picture data to extract the byte from.
+     * @param offset Index of the first of the 8 bytes to read.
+     * @return The hidden byte, as an int in [0, 255].
+     */
+    public static int extract(byte[] data, int offset) {
+        int value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 1) | (data[offset + i] & 1);
+        }
+        return value;
+    }
+
+    /**
+     * Hides {@code values[from] .. values[to - 1]} in consecutive groups of 8 bytes of picture data, same as calling
+     * {@link #embed(byte[], int, int)} for each of them.
+     *
+     * @param data Picture data to hide the bytes in.
+     * @param offset Index of the first byte of picture data to modify.
+     * @param values The bytes to hide. Only the 8 lowest bits of each are used.
+     * @param from First value to hide, inclusive.
+     * @param to Last value to hide, exclusive.
+     */
+    public static void embed(byte[] data, int offset, int[] values, int from, int to) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (int t = from; t < to; t++, offset += 8) {
+            buffer.putLong(offset, (buffer.getLong(offset) & ~LSBS) | spread(values[t]));
+        }
+    }
+
+    /**
+     * Extracts the bytes hidden in consecutive groups of 8 bytes of picture data into {@code values[from] ..
+     * values[to - 1]}, same as calling {@link #extract(byte[], int)} for each of them.
+     *
+     * @param data Picture data to extract the bytes from.
+     * @param offset Index of the first byte of picture data to read.
+     * @param values Where to store the hidden bytes, as ints in [0, 255].
+     * @param from First value to extract, inclusive.
+     * @param to Last value to extract, exclusive.
+     */
+    public static void extract(byte[] data, int offset, int[] values, int from, int to) {
+        final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (int t = from; t < to; t++, offset += 8) {
+            values[t] = gather(buffer.getLong(offset));
+        }
+    }
+
+    /**
+     * @return A long whose byte i, little-endian, is bit 7 - i of {@code value}.
+     */
+    private static long spread(int value) {
+        // Copy the value to every byte and keep a different bit of each, then turn each non-zero byte into a 1
+        final long bits = ((value & 0xFF) * LSBS) & BIT_SELECTORS;
+        return ((bits + HIGH_BITS_IF_NOT_ZERO) >>> 7) & LSBS;
+    }
+
+    /**
+     * @return The byte whose bit 7 - i is the lowest bit of byte i, little-endian, of {@code data}.
+     */
+    private static int gather(long data) {
+        return (int) (((data & LSBS) * GATHER) >>> 56);
+    }
+}
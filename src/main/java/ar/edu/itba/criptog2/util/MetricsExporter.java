@@ -0,0 +1,181 @@
+package ar.edu.itba.criptog2.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * Writes the {@link RunStatistics} of a run to a file, for other tools to pick up. The format depends on the file's
+ * extension:
+ * <ul>
+ *     <li>{@code .prom}: a Prometheus text file, as read by the node exporter's textfile collector, holding the metrics
+ *     of the last run. It is replaced atomically, so the collector never reads it half written.</li>
+ *     <li>Anything else: JSON Lines, one object per run appended to the file, so that runs can be trended over time.</li>
+ * </ul>
+ * Runs of the same JVM that export to the same file at once, like the jobs of a batch, are written one at a time.
+ */
+public final class MetricsExporter {
+
+    private static final String PROMETHEUS_EXTENSION = ".prom";
+    private static final String PROMETHEUS_PREFIX = "visualsss_";
+
+    private static final Object LOCK = new Object();
+
+    private MetricsExporter() {}
+
+    /**
+     * Writes the statistics of a finished run to the given file.
+     *
+     * @param statistics The statistics of the run.
+     * @param file The file to write, created if it does not exist.
+     * @throws IOException If an I/O error occurs writing the file.
+     */
+    public static void export(RunStatistics statistics, String file) throws IOException {
+        final Path path = Paths.get(file);
+        synchronized (LOCK) {
+            if (file.endsWith(PROMETHEUS_EXTENSION)) {
+                writeAtomically(path, toPrometheus(statistics));
+            } else {
+                Files.write(path, (toJson(statistics) + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        }
+    }
+
+    /**
+     * @return The statistics of the run as a single line JSON object.
+     */
+    public static String toJson(RunStatistics statistics) {
+        final StringBuilder json = new StringBuilder("{");
+        json.append("\"operation\":").append(quote(statistics.getOperation()));
+        json.append(",\"secret\":").append(statistics.getSecretName() == null ? "null" : quote(statistics.getSecretName()));
+        json.append(",\"timestamp\":").append(quote(Instant.ofEpochMilli(statistics.getFinishMillis()).toString()));
+        json.append(",\"secretPixels\":").append(statistics.getSecretBytes());
+        json.append(",\"sections\":").append(statistics.getSections());
+        json.append(",\"k\":").append(statistics.getK());
+        if (statistics.getN() > 0) {
+            json.append(",\"n\":").append(statistics.getN());
+        }
+        json.append(",\"shadowsRead\":").append(statistics.getShadowsRead());
+        json.append(",\"shadowsWritten\":").append(statistics.getShadowsWritten());
+        json.append(",\"bytesRead\":").append(statistics.getBytesRead());
+        json.append(",\"bytesWritten\":").append(statistics.getBytesWritten());
+        json.append(",\"wallSeconds\":").append(seconds(statistics.getWallNanos()));
+        json.append(",\"phases\":{");
+        boolean first = true;
+        for (RunStatistics.Phase phase : statistics.getPhases()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            json.append(quote(phase.toString())).append(":{")
+                    .append("\"wallSeconds\":").append(seconds(statistics.getPhaseNanos(phase)))
+                    .append(",\"cpuSeconds\":").append(seconds(statistics.getPhaseCpuNanos(phase)))
+                    .append('}');
+        }
+        json.append('}');
+        json.append(",\"peakHeapBytes\":").append(statistics.getPeakHeapBytes());
+        json.append(",\"overflowPolynomials\":").append(statistics.getOverflowPolynomials());
+        json.append(",\"overflowAdjustments\":").append(statistics.getOverflowAdjustments());
+        return json.append('}').toString();
+    }
+
+    /**
+     * @return The statistics of the run in the Prometheus text format, every metric labeled with the operation.
+     */
+    public static String toPrometheus(RunStatistics statistics) {
+        final String operation = "operation=" + label(statistics.getOperation());
+        final StringBuilder text = new StringBuilder();
+        gauge(text, "last_run_timestamp_seconds", "When the last run finished.", operation, seconds(statistics.getFinishMillis() * 1_000_000));
+        gauge(text, "secret_pixels", "Pixels of the secret.", operation, statistics.getSecretBytes());
+        gauge(text, "sections", "Sections the secret was split in.", operation, statistics.getSections());
+        gauge(text, "k", "Minimum number of shadows needed to recover the secret.", operation, statistics.getK());
+        if (statistics.getN() > 0) {
+            gauge(text, "n", "Number of shadows the secret was distributed among.", operation, statistics.getN());
+        }
+        gauge(text, "shadows_read", "Shadows read.", operation, statistics.getShadowsRead());
+        gauge(text, "shadows_written", "Shadows written.", operation, statistics.getShadowsWritten());
+        gauge(text, "read_bytes", "Bytes of picture data read.", operation, statistics.getBytesRead());
+        gauge(text, "written_bytes", "Bytes of pictures written.", operation, statistics.getBytesWritten());
+        gauge(text, "wall_seconds", "Elapsed time of the run.", operation, seconds(statistics.getWallNanos()));
+
+        header(text, "phase_wall_seconds", "Elapsed time of each phase, added up across threads.");
+        for (RunStatistics.Phase phase : statistics.getPhases()) {
+            sample(text, "phase_wall_seconds", operation + ",phase=" + label(phase.toString()), seconds(statistics.getPhaseNanos(phase)));
+        }
+        header(text, "phase_cpu_seconds", "CPU time of each phase, added up across threads.");
+        for (RunStatistics.Phase phase : statistics.getPhases()) {
+            sample(text, "phase_cpu_seconds", operation + ",phase=" + label(phase.toString()), seconds(statistics.getPhaseCpuNanos(phase)));
+        }
+
+        gauge(text, "peak_heap_bytes", "Peak heap usage of the JVM as of the end of the run.", operation, statistics.getPeakHeapBytes());
+        gauge(text, "overflow_polynomials", "Polynomials adjusted because some evaluation was 256.", operation, statistics.getOverflowPolynomials());
+        gauge(text, "overflow_adjustments", "Coefficient decrements made to adjust polynomials that evaluated to 256.", operation, statistics.getOverflowAdjustments());
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, String labels, Object value) {
+        header(text, name, help);
+        sample(text, name, labels, value);
+    }
+
+    private static void header(StringBuilder text, String name, String help) {
+        text.append("# HELP ").append(PROMETHEUS_PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PROMETHEUS_PREFIX).append(name).append(" gauge\n");
+    }
+
+    private static void sample(StringBuilder text, String name, String labels, Object value) {
+        text.append(PROMETHEUS_PREFIX).append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    /**
+     * Quotes a string as a JSON string.
+     */
+    private static String quote(String value) {
+        final StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c == '\n') {
+                quoted.append("\\n");
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Quotes a string as a Prometheus label value.
+     */
+    private static String label(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    /**
+     * Writes to a temporary file next to the given one, and then moves it over the given one.
+     */
+    private static void writeAtomically(Path path, String content) throws IOException {
+        final Path absolute = path.toAbsolutePath();
+        final Path temporary = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        Files.write(temporary, content.getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(temporary, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ar.edu.itba.criptog2.util;
+
+import java.io.Closeable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs work over a range of independent sections, splitting it across a {@link ForkJoinPool}. Each section of a secret
+ * only touches its own bytes of the secret and of every shadow, so sections can be processed in any order.
+ * <p>
+ * The pool is created once and reused by every call to {@link #process(int, SectionTask)}, so that processing a
+ * secret in many bands does not start new threads for each band. It is shut down when this is closed.
+ */
+public final class ParallelSections implements Closeable {
+
+    /**
+     * Number of chunks to create per thread, so that threads that finish early can steal work from slower ones.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Work to perform on a contiguous range of sections.
+     */
+    @FunctionalInterface
+    public interface SectionTask {
+        /**
+         * @param from First section to process, inclusive.
+         * @param to Last section to process, exclusive.
+         */
+        void process(int from, int to);
+    }
+
+    private final int threads;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threads Number of threads to use. Must be positive. With a single thread, no pool is created.
+     */
+    public ParallelSections(int threads) {
+        this.threads = threads;
+        this.pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Processes sections [0, sections). With a single thread, the task runs on the calling thread over the whole range.
+     *
+     * @param sections Number of sections.
+     * @param task The work to perform on each range of sections.
+     */
+    public void process(int sections, SectionTask task) {
+        if (pool == null || sections <= 1) {
+            task.process(0, sections);
+            return;
+        }
+        final int grain = Math.max(1, sections / (threads * CHUNKS_PER_THREAD));
+        pool.invoke(new SectionAction(0, sections, grain, task));
+    }
+
+    /**
+     * Shuts the pool down. Sections can't be processed after this.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static class SectionAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, grain;
+        private final SectionTask task;
+
+        SectionAction(int from, int to, int grain, SectionTask task) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                task.process(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SectionAction(from, middle, grain, task), new SectionAction(middle, to, grain, task));
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package ar.edu.itba.criptog2.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the phases of distributing or recovering a secret, and counts what was processed. Phases are timed in
+ * intervals, from any number of threads at once, both in elapsed and in CPU time. Each interval is also recorded as a
+ * phase event in JDK Flight Recorder, so that when a recording is running, every phase shows up on the timeline of the
+ * thread that ran it. Whole runs are recorded as run events. Runtimes without Flight Recorder events only skip
+ * recording them.
+ * <p>
+ * Timing is always on: intervals cover blocks of sections rather than single sections, so they cost next to nothing
+ * compared to the work they measure.
+ */
+public final class RunStatistics {
+
+    /**
+     * The phases a run is split in.
+     */
+    public enum Phase {
+        /** Reading picture data. */
+        LOADING("loading"),
+        /** XORing the secret with the keystream before distributing it. */
+        MASKING("masking"),
+        /** Building the polynomial of each section and evaluating it for every shadow. */
+        POLYNOMIAL_BUILD("polynomial build"),
+        /** Adjusting the polynomials that evaluate to 256 for some shadow. */
+        OVERFLOW("overflow"),
+        /** Hiding the evaluations in the least significant bits of the shadows. */
+        EMBEDDING("embedding"),
+        /** Extracting the hidden evaluations from the least significant bits of the shadows. */
+        EXTRACTION("extraction"),
+        /** Interpolating the polynomial of each section. */
+        INTERPOLATION("interpolation"),
+        /** XORing the recovered secret with the keystream. */
+        UNMASKING("unmasking"),
+        /** Writing pictures. */
+        WRITING("writing");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Phases of distributing a secret, in the order they happen.
+     */
+    public static final List<Phase> DISTRIBUTE_PHASES = Arrays.asList(
+            Phase.LOADING, Phase.MASKING, Phase.POLYNOMIAL_BUILD, Phase.OVERFLOW, Phase.EMBEDDING, Phase.WRITING);
+
+    /**
+     * Phases of recovering a secret, in the order they happen.
+     */
+    public static final List<Phase> RECOVER_PHASES = Arrays.asList(
+            Phase.LOADING, Phase.EXTRACTION, Phase.INTERPOLATION, Phase.UNMASKING, Phase.WRITING);
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Flight Recorder event types of each interval of a phase and of whole runs, or null without Flight Recorder.
+     */
+    private static final FlightRecorderEventType PHASE_EVENT = FlightRecorderEventType
+            .builder("ar.edu.itba.criptog2.Phase", "Phase",
+                    "An interval of one phase of distributing or recovering a secret")
+            .field("operation", "Operation", String.class)
+            .field("phase", "Phase", String.class)
+            .define();
+    private static final FlightRecorderEventType RUN_EVENT = FlightRecorderEventType
+            .builder("ar.edu.itba.criptog2.Run", "Run", "Distributing or recovering one secret")
+            .field("operation", "Operation", String.class)
+            .field("secret", "Secret", String.class)
+            .field("secretBytes", "Secret Bytes", long.class)
+            .field("sections", "Sections", long.class)
+            .field("k", "K", int.class)
+            .field("n", "N", int.class)
+            .field("overflowPolynomials", "Overflow Polynomials", long.class)
+            .field("overflowAdjustments", "Overflow Adjustments", long.class)
+            .define();
+
+    private final String operation;
+    private final List<Phase> phases;
+    private final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private final LongAdder[] phaseCpuNanos = new LongAdder[Phase.values().length];
+    private final LongAdder overflowPolynomials = new LongAdder();
+    private final LongAdder overflowAdjustments = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    private String secretName;
+    private long secretBytes;
+    private long sections;
+    private int k, n;
+    private int shadowsRead, shadowsWritten;
+
+    private long startNanos;
+    private long wallNanos;
+    private long finishMillis;
+    private long peakHeapBytes;
+    private Object runEvent;
+
+    /**
+     * @param operation What the run does, e.g. "distribute" or "recover".
+     * @param phases The phases the run reports, in order.
+     */
+    public RunStatistics(String operation, List<Phase> phases) {
+        this.operation = operation;
+        this.phases = phases;
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+            phaseCpuNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Describes what the run processes.
+     *
+     * @param secretName Name of the secret picture.
+     * @param secretBytes Number of bytes of the secret's picture data.
+     * @param sections Number of sections the secret is split in.
+     * @param k The minimum number of shadows needed to recover the secret.
+     * @param n The number of shadows, or 0 if not known.
+     */
+    public void describe(String secretName, long secretBytes, long sections, int k, int n) {
+        this.secretName = secretName;
+        this.secretBytes = secretBytes;
+        this.sections = sections;
+        this.k = k;
+        this.n = n;
+    }
+
+    /**
+     * Counts the shadows the run read and wrote.
+     */
+    public void countShadows(int read, int written) {
+        this.shadowsRead = read;
+        this.shadowsWritten = written;
+    }
+
+    /**
+     * Starts timing the whole run.
+     */
+    public void start() {
+        runEvent = RUN_EVENT != null ? RUN_EVENT.begin() : null;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Stops timing the whole run.
+     */
+    public void finish() {
+        wallNanos = System.nanoTime() - startNanos;
+        finishMillis = System.currentTimeMillis();
+        peakHeapBytes = measurePeakHeap();
+        if (runEvent != null) {
+            RUN_EVENT.commit(runEvent, operation, secretName, secretBytes, sections, k, n, overflowPolynomials.sum(),
+                    overflowAdjustments.sum());
+        }
+    }
+
+    /**
+     * Starts an interval of the given phase, which ends when it is closed. Meant for try-with-resources.
+     */
+    public Interval time(Phase phase) {
+        return new Interval(phase);
+    }
+
+    /**
+     * Counts polynomials that had to be adjusted because some evaluation was 256.
+     *
+     * @param polynomials How many polynomials had to be adjusted.
+     * @param adjustments How many times a coefficient was decremented to adjust them, in total.
+     */
+    public void addOverflows(long polynomials, long adjustments) {
+        overflowPolynomials.add(polynomials);
+        overflowAdjustments.add(adjustments);
+    }
+
+    public void addBytesRead(long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    public void addBytesWritten(long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * @return Nanoseconds spent in the given phase, added up across threads.
+     */
+    public long getPhaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @return CPU nanoseconds the threads that timed the given phase spent in it, added up across threads. Only the
+     * threads that time a phase are measured, so phases that wait on the I/O executor use little CPU time.
+     */
+    public long getPhaseCpuNanos(Phase phase) {
+        return phaseCpuNanos[phase.ordinal()].sum();
+    }
+
+    public long getOverflowPolynomials() {
+        return overflowPolynomials.sum();
+    }
+
+    public long getOverflowAdjustments() {
+        return overflowAdjustments.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public List<Phase> getPhases() {
+        return phases;
+    }
+
+    public String getSecretName() {
+        return secretName;
+    }
+
+    public long getSecretBytes() {
+        return secretBytes;
+    }
+
+    public long getSections() {
+        return sections;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return The number of shadows, or 0 if not known.
+     */
+    public int getN() {
+        return n;
+    }
+
+    public int getShadowsRead() {
+        return shadowsRead;
+    }
+
+    public int getShadowsWritten() {
+        return shadowsWritten;
+    }
+
+    /**
+     * @return When the run finished, in milliseconds since the epoch.
+     */
+    public long getFinishMillis() {
+        return finishMillis;
+    }
+
+    /**
+     * @return The largest the heap of the JVM has been, as of the end of the run. The JVM is shared by every run in
+     * it, so this is an upper bound of what the run itself needed.
+     */
+    public long getPeakHeapBytes() {
+        return peakHeapBytes;
+    }
+
+    /**
+     * @return Nanoseconds the whole run took, once finished.
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * @return A human readable report of the run, with how long each phase took and the run's throughput.
+     */
+    public String summary() {
+        final double seconds = wallNanos / 1e9;
+        final StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT, "%s %s: %d bytes, %d sections, k=%d%s, %.2f ms%n",
+                capitalize(operation), secretName, secretBytes, sections, k, n > 0 ? ", n=" + n : "", wallNanos / 1e6));
+        for (Phase phase : phases) {
+            summary.append(String.format(Locale.ROOT, "  %-18s%10.2f ms", phase, getPhaseNanos(phase) / 1e6));
+            if (phase == Phase.OVERFLOW) {
+                summary.append(String.format(Locale.ROOT, "  %d adjustments", getOverflowAdjustments()));
+            }
+            summary.append(System.lineSeparator());
+        }
+        summary.append(String.format(Locale.ROOT, "  %.0f bytes/s, %.0f sections/s",
+                seconds > 0 ? secretBytes / seconds : 0, seconds > 0 ? sections / seconds : 0));
+        return summary.toString();
+    }
+
+    private static long measurePeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long threadCpuNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static String capitalize(String word) {
+        return word.isEmpty() ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+
+    /**
+     * An interval of a phase, see {@link #time(Phase)}.
+     */
+    public final class Interval implements AutoCloseable {
+        private final Phase phase;
+        private final Object event;
+        private final long startNanos;
+        private final long startCpuNanos;
+
+        private Interval(Phase phase) {
+            this.phase = phase;
+            this.event = PHASE_EVENT != null ? PHASE_EVENT.begin() : null;
+            this.startNanos = System.nanoTime();
+            this.startCpuNanos = threadCpuNanos();
+        }
+
+        @Override
+        public void close() {
+            phaseNanos[phase.ordinal()].add(System.nanoTime() - startNanos);
+            phaseCpuNanos[phase.ordinal()].add(threadCpuNanos() - startCpuNanos);
+            if (event != null) {
+                PHASE_EVENT.commit(event, operation, phase.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package ar.edu.itba.criptog2.util;
+
+import java.util.Arrays;
+
+/**
+ * Evaluates the polynomials of many sections at once, in 1, 2, ..., n modulo 257 unless another {@link Field} is
+ * given. Evaluating every section is the product of the (sections x k) matrix of coefficients and the fixed (k x n)
+ * Vandermonde matrix of the shadow numbers, so the powers of each shadow number are computed once, and sections are
+ * processed in tiles:
+ * <ol>
+ *     <li>the coefficients of a tile are unpacked into one int row per coefficient,</li>
+ *     <li>each shadow's evaluations are accumulated row by row with plain int arithmetic, which the JIT can vectorize,
+ *     and reduced modulo 257 once at the end instead of after every term,</li>
+ *     <li>the evaluations are hidden straight into each shadow's picture data.</li>
+ * </ol>
+ * Results are the same as evaluating each polynomial with {@link GF257#evaluate(int[], int)}.
+ * <p>
+ * Sections can also be shared in {@link Field#GF256}, where the product of a coefficient and a power is a lookup in a
+ * multiplication table per power, and terms are added with XOR. Evaluations then always fit in a byte, so there are no
+ * overflows to fix, and results are the same as evaluating with {@link GF256#evaluate(int[], int)}.
+ * <p>
+ * Encoders hold no mutable state, so one encoder can be shared by any number of threads, each with its own
+ * {@link Tile}.
+ */
+public final class VandermondeEncoder {
+
+    /**
+     * Number of terms that can be added up before an int may overflow, each term being at most 255 * 256.
+     */
+    private static final int TERMS_PER_REDUCTION = Integer.MAX_VALUE / (255 * 256);
+
+    private final int k;
+    private final int n;
+    private final Field field;
+
+    /**
+     * {@code powers[i][x]} is (x + 1)^i modulo 257, the weight of coefficient i in the evaluation of shadow x + 1.
+     */
+    private final int[][] powers;
+
+    /**
+     * {@code inversePowers[i][x]} is the inverse of {@code powers[i][x]}, or 0 if it has none.
+     */
+    private final int[][] inversePowers;
+
+    /**
+     * In {@link Field#GF256}, {@code products[i][x][c]} is c * (x + 1)^i. Null otherwise.
+     */
+    private final byte[][][] products;
+
+    /**
+     * @param k Number of coefficients of each section's polynomial.
+     * @param n Number of shadows, each section is evaluated in 1, 2, ..., n.
+     */
+    public VandermondeEncoder(int k, int n) {
+        this(k, n, Field.GF257);
+    }
+
+    /**
+     * @param k Number of coefficients of each section's polynomial.
+     * @param n Number of shadows, each section is evaluated in 1, 2, ..., n. At most 255 in {@link Field#GF256}.
+     * @param field The field sections are shared in.
+     */
+    public VandermondeEncoder(int k, int n, Field field) {
+        this.k = k;
+        this.n = n;
+        this.field = field;
+        this.powers = new int[k][n];
+        this.inversePowers = new int[k][n];
+        if (field == Field.GF256) {
+            this.products = new byte[k][n][];
+            for (int x = 0; x < n; x++) {
+                int power = 1;
+                for (int i = 0; i < k; i++) {
+                    products[i][x] = GF256.multiplicationTable(power);
+                    power = GF256.mul(power, x + 1);
+                }
+            }
+            return;
+        }
+        this.products = null;
+        for (int x = 0; x < n; x++) {
+            final int base = GF257.reduce(x + 1);
+            int power = 1;
+            for (int i = 0; i < k; i++) {
+                powers[i][x] = power;
+                inversePowers[i][x] = power == 0 ? 0 : GF257.inverse(power);
+                power = GF257.mul(power, base);
+            }
+        }
+    }
+
+    /**
+     * @param capacity Maximum number of sections the tile is used for at once.
+     * @return Working space to evaluate sections with, to be used by one thread at a time.
+     */
+    public Tile newTile(int capacity) {
+        return new Tile(k, n, capacity);
+    }
+
+    /**
+     * Evaluates the polynomials of sections [from, to) into the given tile.
+     *
+     * @param tile Where to store the evaluations. Must hold at least {@code to - from} sections.
+     * @param secret The masked secret, where the coefficients of section j are {@code secret[j * k] .. secret[j * k + k - 1]}.
+     * @param from First section to evaluate, inclusive.
+     * @param to Last section to evaluate, exclusive.
+     */
+    public void evaluate(Tile tile, byte[] secret, int from, int to) {
+        final int length = to - from;
+        tile.length = length;
+
+        final int[][] coefficients = tile.coefficients;
+        for (int t = 0, offset = from * k; t < length; t++) {
+            for (int i = 0; i < k; i++) {
+                coefficients[i][t] = secret[offset++] & 0xFF;
+            }
+        }
+
+        final int[] overflows = tile.overflows;
+        Arrays.fill(overflows, 0, length, 0);
+        if (field == Field.GF256) {
+            evaluateGF256(tile);
+            return;
+        }
+        for (int x = 0; x < n; x++) {
+            final int[] evaluations = tile.evaluations[x];
+            final int[] constant = coefficients[0];
+            // x^0 is always 1
+            System.arraycopy(constant, 0, evaluations, 0, length);
+            for (int i = 1; i < k; i++) {
+                final int[] coefficient = coefficients[i];
+                final int power = powers[i][x];
+                for (int t = 0; t < length; t++) {
+                    evaluations[t] += coefficient[t] * power;
+                }
+                if (i % TERMS_PER_REDUCTION == 0) {
+                    reduce(evaluations, length);
+                }
+            }
+            // Reduce, and flag the sections with an evaluation of 256 without branching: it's the only one with bit 8 set
+            for (int t = 0; t < length; t++) {
+                final int evaluation = evaluations[t] % GF257.ORDER;
+                evaluations[t] = evaluation;
+                overflows[t] |= evaluation >>> 8;
+            }
+        }
+    }
+
+    /**
+     * Evaluates the coefficients of the tile in {@link Field#GF256}, where nothing ever overflows.
+     */
+    private void evaluateGF256(Tile tile) {
+        final int length = tile.length;
+        final int[][] coefficients = tile.coefficients;
+        for (int x = 0; x < n; x++) {
+            final int[] evaluations = tile.evaluations[x];
+            // x^0 is always 1
+            System.arraycopy(coefficients[0], 0, evaluations, 0, length);
+            for (int i = 1; i < k; i++) {
+                final int[] coefficient = coefficients[i];
+                final byte[] product = products[i][x];
+                for (int t = 0; t < length; t++) {
+                    evaluations[t] ^= product[coefficient[t]] & 0xFF;
+                }
+            }
+        }
+    }
+
+    private static void reduce(int[] values, int length) {
+        for (int t = 0; t < length; t++) {
+            values[t] %= GF257.ORDER;
+        }
+    }
+
+    /**
+     * Adjusts the polynomial of every section in the tile that evaluates to 256 for some shadow, since 256 can't be
+     * hidden in a byte. The first non-zero coefficient is decremented, as many times as needed for no evaluation to be
+     * 256, moving on to the next coefficient if it reaches 0.
+     * <p>
+     * Polynomials are never re-evaluated: decrementing coefficient i by d lowers the evaluation in x by d * x^i, so the
+     * values of d that would leave some evaluation at 256 are known in advance, one per shadow, and the smallest d that
+     * is not one of them is taken right away. The cost of a section is thus bounded by k and n, however many
+     * decrements it needs. How many polynomials were adjusted and how many decrements that took is kept in the tile.
+     * <p>
+     * In {@link Field#GF256} no evaluation is ever 256, so nothing is adjusted.
+     *
+     * @param tile A tile filled by {@link #evaluate(Tile, byte[], int, int)}.
+     */
+    public void fixOverflows(Tile tile) {
+        final int[] evaluations = tile.sectionEvaluations;
+        long polynomials = 0, adjustments = 0;
+        for (int t = 0; t < tile.length; t++) {
+            if (tile.overflows[t] == 0) {
+                continue;
+            }
+            polynomials++;
+            for (int x = 0; x < n; x++) {
+                evaluations[x] = tile.evaluations[x][t];
+            }
+            for (int i = 0; i < k; i++) {
+                final int coefficient = tile.coefficients[i][t];
+                if (coefficient == 0) {
+                    continue;
+                }
+                final int decrement = smallestDecrement(tile, i, coefficient, evaluations);
+                for (int x = 0; x < n; x++) {
+                    evaluations[x] = GF257.sub(evaluations[x], GF257.mul(decrement, powers[i][x]));
+                }
+                tile.coefficients[i][t] = coefficient - decrement;
+                adjustments += decrement;
+                if (!contains256(evaluations)) {
+                    break;
+                }
+            }
+            for (int x = 0; x < n; x++) {
+                tile.evaluations[x][t] = evaluations[x];
+            }
+        }
+        tile.overflowPolynomials = polynomials;
+        tile.overflowAdjustments = adjustments;
+    }
+
+    /**
+     * Finds how much to decrement a coefficient so that no evaluation is 256.
+     *
+     * @param tile The tile the section belongs to, whose scratch space is used.
+     * @param i Which coefficient to decrement.
+     * @param coefficient The coefficient's value.
+     * @param evaluations The section's evaluations.
+     * @return The smallest decrement in [1, coefficient] that leaves no evaluation at 256, or {@code coefficient} if
+     * there is none.
+     */
+    private int smallestDecrement(Tile tile, int i, int coefficient, int[] evaluations) {
+        final int[] excluded = tile.excludedDecrements;
+        if (tile.stamp == Integer.MAX_VALUE) {
+            Arrays.fill(excluded, 0);
+            tile.stamp = 0;
+        }
+        final int stamp = ++tile.stamp;
+        for (int x = 0; x < n; x++) {
+            final int inverse = inversePowers[i][x];
+            if (inverse != 0) {
+                // e - d * p = 256 = -1  <=>  d = (e + 1) / p
+                excluded[GF257.mul(GF257.add(evaluations[x], 1), inverse)] = stamp;
+            } else if (evaluations[x] == 256) {
+                // x^i is 0, so no decrement of this coefficient changes this evaluation
+                return coefficient;
+            }
+        }
+        for (int decrement = 1; decrement < coefficient; decrement++) {
+            if (excluded[decrement] != stamp) {
+                return decrement;
+            }
+        }
+        return coefficient;
+    }
+
+    private static boolean contains256(int[] evaluations) {
+        for (int evaluation : evaluations) {
+            if (evaluation == 256) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hides the evaluations of the tile in the picture data of every shadow, one byte in the least significant bits of
+     * 8 bytes of picture data, with {@link LsbCodec#embed(byte[], int, int[], int, int)}.
+     *
+     * @param tile A tile whose overflows were fixed with {@link #fixOverflows(Tile)}.
+     * @param shadowData The picture data of each shadow, where section j starts at {@code 8 * j}.
+     * @param from The section the tile starts at.
+     */
+    public void embed(Tile tile, byte[][] shadowData, int from) {
+        for (int x = 0; x < n; x++) {
+            LsbCodec.embed(shadowData[x], 8 * from, tile.evaluations[x], 0, tile.length);
+        }
+    }
+
+    /**
+     * Working space for a range of sections: their coefficients, one row per coefficient, their evaluations, one row
+     * per shadow, and whether any of their evaluations is 256.
+     */
+    public static final class Tile {
+        private final int[][] coefficients;
+        private final int[][] evaluations;
+        private final int[] overflows;
+        private final int[] sectionEvaluations;
+        private final int[] excludedDecrements;
+        private int stamp;
+        private int length;
+        private long overflowPolynomials, overflowAdjustments;
+
+        private Tile(int k, int n, int capacity) {
+            this.coefficients = new int[k][capacity];
+            this.evaluations = new int[n][capacity];
+            this.overflows = new int[capacity];
+            this.sectionEvaluations = new int[n];
+            this.excludedDecrements = new int[GF257.ORDER];
+        }
+
+        /**
+         * @return How many polynomials the last call to {@link #fixOverflows(Tile)} adjusted.
+         */
+        public long getOverflowPolynomials() {
+            return overflowPolynomials;
+        }
+
+        /**
+         * @return How many times the last call to {@link #fixOverflows(Tile)} decremented a coefficient.
+         */
+        public long getOverflowAdjustments() {
+            return overflowAdjustments;
+        }
+    }
+}